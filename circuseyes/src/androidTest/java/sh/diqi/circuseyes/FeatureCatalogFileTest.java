@@ -0,0 +1,244 @@
+package sh.diqi.circuseyes;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.CvType;
+import org.opencv.core.KeyPoint;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes, appends to and compacts catalog files in the cache directory of the test app.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FeatureCatalogFileTest {
+
+    private static final int BYTES = 32;
+    private static final long ASSET_VERSION = 42;
+
+    private final Random mRandom = new Random(1);
+    private File mFile;
+
+    @BeforeClass
+    public static void loadOpenCv() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    @Before
+    public void createFile() {
+        mFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "catalog_test");
+        delete();
+    }
+
+    @After
+    public void delete() {
+        mFile.delete();
+        new File(mFile.getPath() + ".idx").delete();
+    }
+
+    @Test
+    public void append_readsBackBaseAndAddedFaces() throws Exception {
+        final Mat a = descriptors(10);
+        final Mat b = descriptors(5);
+        final FeatureCatalog base = writeBase(a, b);
+
+        final FeatureCatalog.Builder builder = new FeatureCatalog.Builder(base);
+        final Mat c = descriptors(7);
+        builder.add("c", keypoints(7), c);
+        final FeatureCatalog appended = FeatureCatalogFile.append(mFile, ASSET_VERSION, builder);
+        assertEquals(22, appended.getRowCount());
+        assertEquals(base.getGeneration(), appended.getGeneration());
+
+        final FeatureCatalog read = FeatureCatalogFile.read(mFile, ASSET_VERSION);
+        assertNotNull(read);
+        assertEquals(3, read.getSkuCount());
+        assertEquals(22, read.getRowCount());
+        assertEquals(base.getGeneration(), read.getGeneration());
+        assertFace(a, read, "a");
+        assertFace(b, read, "b");
+        assertFace(c, read, "c");
+        assertEquals(7, read.getKeypointStart(read.getFaceStart(read.getSku("c")) + 1)
+                - read.getKeypointStart(read.getFaceStart(read.getSku("c"))));
+    }
+
+    @Test
+    public void append_overwritesRowsLeftByInterruptedUpdate() throws Exception {
+        final Mat a = descriptors(10);
+        final Mat b = descriptors(5);
+        final FeatureCatalog base = writeBase(a, b);
+        // Rows of an update which failed before its index was written.
+        final long length = mFile.length();
+        final RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            final byte[] junk = new byte[20 * BYTES];
+            mRandom.nextBytes(junk);
+            raf.seek(length);
+            raf.write(junk);
+        } finally {
+            raf.close();
+        }
+        final FeatureCatalog reopened = FeatureCatalogFile.read(mFile, ASSET_VERSION);
+        assertNotNull(reopened);
+        assertEquals(15, reopened.getRowCount());
+
+        final FeatureCatalog.Builder builder = new FeatureCatalog.Builder(reopened);
+        final Mat c = descriptors(7);
+        builder.add("c", keypoints(7), c);
+        final FeatureCatalog appended = FeatureCatalogFile.append(mFile, ASSET_VERSION, builder);
+        assertEquals(22, appended.getRowCount());
+        assertEquals(base.getGeneration(), appended.getGeneration());
+
+        final FeatureCatalog read = FeatureCatalogFile.read(mFile, ASSET_VERSION);
+        assertNotNull(read);
+        assertEquals(22, read.getRowCount());
+        assertFace(a, read, "a");
+        assertFace(b, read, "b");
+        assertFace(c, read, "c");
+    }
+
+    @Test
+    public void append_keepsOrphanedRowsUpToHalf() throws Exception {
+        final FeatureCatalog base = writeBase(descriptors(10), descriptors(10));
+        final FeatureCatalog.Builder builder = new FeatureCatalog.Builder(base);
+        builder.remove("a");
+        final Mat c = descriptors(5);
+        builder.add("c", keypoints(5), c);
+        final FeatureCatalog appended = FeatureCatalogFile.append(mFile, ASSET_VERSION, builder);
+        // 10 of 25 rows are orphaned, the file is appended to.
+        assertEquals(25, appended.getRowCount());
+        assertEquals(15, appended.getDescriptorCount());
+        assertEquals(base.getGeneration(), appended.getGeneration());
+        assertFace(c, FeatureCatalogFile.read(mFile, ASSET_VERSION), "c");
+    }
+
+    @Test
+    public void append_compactsWhenMostRowsAreOrphaned() throws Exception {
+        final FeatureCatalog base = writeBase(descriptors(10), descriptors(10));
+        final FeatureCatalog.Builder builder = new FeatureCatalog.Builder(base);
+        builder.remove("a");
+        builder.remove("b");
+        final Mat c = descriptors(5);
+        builder.add("c", keypoints(5), c);
+        final FeatureCatalog compacted = FeatureCatalogFile.append(mFile, ASSET_VERSION, builder);
+        assertEquals(5, compacted.getRowCount());
+        assertNotEquals(base.getGeneration(), compacted.getGeneration());
+
+        final FeatureCatalog read = FeatureCatalogFile.read(mFile, ASSET_VERSION);
+        assertNotNull(read);
+        assertEquals(1, read.getSkuCount());
+        assertEquals(5, read.getRowCount());
+        assertFace(c, read, "c");
+    }
+
+    @Test
+    public void read_rejectsOtherAssetVersion() throws Exception {
+        writeBase(descriptors(10), descriptors(5));
+        assertNull(FeatureCatalogFile.read(mFile, ASSET_VERSION + 1));
+        assertNotNull(FeatureCatalogFile.read(mFile, ASSET_VERSION));
+    }
+
+    @Test
+    public void read_rejectsIndexOfOtherGeneration() throws Exception {
+        writeBase(descriptors(10), descriptors(5));
+        final File other = new File(mFile.getPath() + "_other");
+        final FeatureCatalog.Builder builder = new FeatureCatalog.Builder();
+        builder.add("a", keypoints(15), descriptors(15));
+        FeatureCatalogFile.write(other, ASSET_VERSION, builder.build());
+        try {
+            assertTrue(new File(other.getPath() + ".idx").renameTo(new File(mFile.getPath() + ".idx")));
+            assertNull(FeatureCatalogFile.read(mFile, ASSET_VERSION));
+        } finally {
+            other.delete();
+        }
+    }
+
+    @Test
+    public void append_rewritesFileOfOtherGeneration() throws Exception {
+        final FeatureCatalog base = writeBase(descriptors(10), descriptors(5));
+        // Another catalog replaced the file since base was read.
+        final FeatureCatalog.Builder replacement = new FeatureCatalog.Builder();
+        replacement.add("z", keypoints(30), descriptors(30));
+        FeatureCatalogFile.write(mFile, ASSET_VERSION, replacement.build());
+
+        final FeatureCatalog.Builder builder = new FeatureCatalog.Builder(base);
+        final Mat c = descriptors(7);
+        builder.add("c", keypoints(7), c);
+        final FeatureCatalog rewritten = FeatureCatalogFile.append(mFile, ASSET_VERSION, builder);
+        assertEquals(22, rewritten.getRowCount());
+        assertNotEquals(base.getGeneration(), rewritten.getGeneration());
+
+        final FeatureCatalog read = FeatureCatalogFile.read(mFile, ASSET_VERSION);
+        assertNotNull(read);
+        assertEquals(-1, read.getSku("z"));
+        assertFace(c, read, "c");
+    }
+
+    @Test
+    public void append_rewritesFileOfOtherAssetVersion() throws Exception {
+        final FeatureCatalog base = writeBase(descriptors(10), descriptors(5));
+        final FeatureCatalog.Builder builder = new FeatureCatalog.Builder(base);
+        final Mat c = descriptors(7);
+        builder.add("c", keypoints(7), c);
+        final FeatureCatalog rewritten = FeatureCatalogFile.append(mFile, ASSET_VERSION + 1, builder);
+        assertEquals(22, rewritten.getRowCount());
+        assertNull(FeatureCatalogFile.read(mFile, ASSET_VERSION));
+        assertFace(c, FeatureCatalogFile.read(mFile, ASSET_VERSION + 1), "c");
+    }
+
+    /**
+     * Writes a catalog of SKU "a" with the rows of {@code a} and SKU "b" with those of
+     * {@code b}, and returns it mapped from the file.
+     */
+    private FeatureCatalog writeBase(Mat a, Mat b) throws IOException {
+        final FeatureCatalog.Builder builder = new FeatureCatalog.Builder();
+        builder.add("a", keypoints(a.rows()), a);
+        builder.add("b", keypoints(b.rows()), b);
+        FeatureCatalogFile.write(mFile, ASSET_VERSION, builder.build());
+        final FeatureCatalog base = FeatureCatalogFile.read(mFile, ASSET_VERSION);
+        assertNotNull(base);
+        return base;
+    }
+
+    private Mat descriptors(int rows) {
+        final byte[] data = new byte[rows * BYTES];
+        mRandom.nextBytes(data);
+        final Mat des = new Mat(rows, BYTES, CvType.CV_8UC1);
+        des.put(0, 0, data);
+        return des;
+    }
+
+    private MatOfKeyPoint keypoints(int count) {
+        final KeyPoint[] keypoints = new KeyPoint[count];
+        for (int i = 0; i < count; i++) {
+            keypoints[i] = new KeyPoint(mRandom.nextFloat() * 100, mRandom.nextFloat() * 100, 7);
+        }
+        return new MatOfKeyPoint(keypoints);
+    }
+
+    private static void assertFace(Mat expected, FeatureCatalog catalog, String sku) {
+        assertNotNull(catalog);
+        final int index = catalog.getSku(sku);
+        assertTrue(sku + " missing", index >= 0);
+        final Mat actual = catalog.getFaceDescriptors(catalog.getFaceStart(index));
+        assertEquals(expected.rows(), actual.rows());
+        final byte[] expectedBytes = new byte[expected.rows() * BYTES];
+        final byte[] actualBytes = new byte[actual.rows() * BYTES];
+        expected.get(0, 0, expectedBytes);
+        actual.get(0, 0, actualBytes);
+        assertArrayEquals(expectedBytes, actualBytes);
+    }
+}
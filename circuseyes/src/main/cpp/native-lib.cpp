@@ -1,6 +1,15 @@
 #include <jni.h>
+#include <climits>
+#include <cstring>
+#include <stdint.h>
 #include <string>
 
+#include <opencv2/core.hpp>
+
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+#include <arm_neon.h>
+#endif
+
 extern "C"
 JNIEXPORT jstring JNICALL
 Java_sh_diqi_testcpp_MainActivity_stringFromJNI(
@@ -9,3 +18,172 @@ Java_sh_diqi_testcpp_MainActivity_stringFromJNI(
     std::string hello = "Hello from C++";
     return env->NewStringUTF(hello.c_str());
 }
+
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_sh_diqi_circuseyes_FeatureCatalogFile_nativeWrap(
+        JNIEnv *env,
+        jclass /* clazz */,
+        jobject buffer,
+        jlong offset,
+        jint rows,
+        jint cols,
+        jint type) {
+    uchar *data = static_cast<uchar *>(env->GetDirectBufferAddress(buffer));
+    if (data == NULL) {
+        return 0;
+    }
+    // The header does not own the data, the mapping has to outlive it.
+    return (jlong) new cv::Mat(rows, cols, type, data + offset);
+}
+
+static inline int hammingDistance(const uchar *a, const uchar *b, int n) {
+    int distance = 0;
+    int i = 0;
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+    uint32x4_t acc = vdupq_n_u32(0);
+    for (; i + 16 <= n; i += 16) {
+        uint8x16_t bits = vcntq_u8(veorq_u8(vld1q_u8(a + i), vld1q_u8(b + i)));
+        acc = vpadalq_u16(acc, vpaddlq_u8(bits));
+    }
+    uint64x2_t sum = vpaddlq_u32(acc);
+    distance = (int) (vgetq_lane_u64(sum, 0) + vgetq_lane_u64(sum, 1));
+#else
+    for (; i + 8 <= n; i += 8) {
+        uint64_t x, y;
+        memcpy(&x, a + i, 8);
+        memcpy(&y, b + i, 8);
+        distance += __builtin_popcountll(x ^ y);
+    }
+#endif
+    for (; i < n; i++) {
+        distance += __builtin_popcount((unsigned) (a[i] ^ b[i]));
+    }
+    return distance;
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_sh_diqi_circuseyes_HammingMatcher_nativeCountGoodMatches(
+        JNIEnv *env,
+        jclass /* clazz */,
+        jlong queryAddr,
+        jlong catalogAddr,
+        jintArray descriptorStarts,
+        jintArray descriptorEnds,
+        jintArray faces,
+        jint count,
+        jfloat ratio,
+        jintArray goods) {
+    const cv::Mat &query = *(cv::Mat *) queryAddr;
+    const cv::Mat &catalog = *(cv::Mat *) catalogAddr;
+    const int bytes = query.cols;
+    jint *starts = env->GetIntArrayElements(descriptorStarts, NULL);
+    jint *ends = env->GetIntArrayElements(descriptorEnds, NULL);
+    jint *ids = env->GetIntArrayElements(faces, NULL);
+    jint *out = env->GetIntArrayElements(goods, NULL);
+    for (int f = 0; f < count; f++) {
+        int good = 0;
+        if (query.rows >= 2) {
+            for (int row = starts[ids[f]]; row < ends[ids[f]]; row++) {
+                const uchar *d = catalog.ptr<uchar>(row);
+                int best = INT_MAX;
+                int second = INT_MAX;
+                for (int q = 0; q < query.rows; q++) {
+                    int distance = hammingDistance(d, query.ptr<uchar>(q), bytes);
+                    if (distance < best) {
+                        second = best;
+                        best = distance;
+                    } else if (distance < second) {
+                        second = distance;
+                    }
+                }
+                if (best < ratio * second) {
+                    good++;
+                }
+            }
+        }
+        out[f] = good;
+    }
+    env->ReleaseIntArrayElements(goods, out, 0);
+    env->ReleaseIntArrayElements(faces, ids, JNI_ABORT);
+    env->ReleaseIntArrayElements(descriptorEnds, ends, JNI_ABORT);
+    env->ReleaseIntArrayElements(descriptorStarts, starts, JNI_ABORT);
+}
+
+// Frame layouts of FrameConverter.
+enum {
+    LAYOUT_NV21 = 0,
+    LAYOUT_YUYV = 1,
+    LAYOUT_RGBX = 2
+};
+
+static inline uchar clampByte(int value) {
+    return (uchar) (value < 0 ? 0 : (value > 255 ? 255 : value));
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_sh_diqi_circuseyes_FrameConverter_nativeToRgb(
+        JNIEnv *env,
+        jclass /* clazz */,
+        jobject frame,
+        jint width,
+        jint height,
+        jint layout,
+        jobject rgb,
+        jint dstWidth,
+        jint dstHeight) {
+    const uchar *src = static_cast<const uchar *>(env->GetDirectBufferAddress(frame));
+    uchar *dst = static_cast<uchar *>(env->GetDirectBufferAddress(rgb));
+    if (src == NULL || dst == NULL || width <= 0 || height <= 0 || dstWidth <= 0 || dstHeight <= 0) {
+        env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"), "not a direct buffer or invalid size");
+        return;
+    }
+    // Same checks as FrameConverter.toRgb, the sampling below reads and writes unchecked.
+    const int64_t pixels = (int64_t) width * height;
+    const int64_t frameSize = layout == LAYOUT_NV21 ? pixels * 3 / 2 : (layout == LAYOUT_YUYV ? pixels * 2 : pixels * 4);
+    if ((layout == LAYOUT_NV21 && ((width | height) & 1)) || (layout == LAYOUT_YUYV && (width & 1)) ||
+            env->GetDirectBufferCapacity(frame) < frameSize ||
+            env->GetDirectBufferCapacity(rgb) < (int64_t) dstWidth * dstHeight * 3) {
+        env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"), "frame or rgb buffer too small");
+        return;
+    }
+    const uchar *vu = src + width * height;
+    // 16.16 fixed point steps of the nearest neighbour sampling.
+    const int64_t stepX = ((int64_t) width << 16) / dstWidth;
+    const int64_t stepY = ((int64_t) height << 16) / dstHeight;
+    for (int y = 0; y < dstHeight; y++) {
+        const int sy = (int) ((y * stepY) >> 16);
+        int64_t fx = 0;
+        for (int x = 0; x < dstWidth; x++, fx += stepX, dst += 3) {
+            const int sx = (int) (fx >> 16);
+            if (layout == LAYOUT_RGBX) {
+                const uchar *pixel = src + (sy * width + sx) * 4;
+                dst[0] = pixel[0];
+                dst[1] = pixel[1];
+                dst[2] = pixel[2];
+                continue;
+            }
+            int luma, u, v;
+            if (layout == LAYOUT_NV21) {
+                luma = src[sy * width + sx];
+                const uchar *chroma = vu + (sy >> 1) * width + (sx & ~1);
+                v = chroma[0];
+                u = chroma[1];
+            } else {
+                const uchar *pair = src + (sy * width + (sx & ~1)) * 2;
+                luma = pair[(sx & 1) * 2];
+                u = pair[1];
+                v = pair[3];
+            }
+            // BT.601 limited range.
+            const int c = 298 * (luma - 16);
+            const int d = u - 128;
+            const int e = v - 128;
+            dst[0] = clampByte((c + 409 * e + 128) >> 8);
+            dst[1] = clampByte((c - 100 * d - 208 * e + 128) >> 8);
+            dst[2] = clampByte((c + 516 * d + 128) >> 8);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package sh.diqi.circuseyes;
+
+import org.opencv.core.Mat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for binary descriptors packed into longs, 8 descriptor bytes per long, byte {@code i}
+ * in bits {@code 8 * (i % 8)} and up of long {@code i / 8}, which is also how a little endian
+ * buffer of descriptor bytes reads as longs.
+ */
+final class BinaryDescriptors {
+
+    private BinaryDescriptors() {
+    }
+
+    public static int words(int bytes) {
+        return (bytes + 7) / 8;
+    }
+
+    /**
+     * Packs all rows of a CV_8U descriptor mat, {@code words(des.cols())} longs per row.
+     */
+    public static long[] pack(Mat des) {
+        if (des.empty()) {
+            return new long[0];
+        }
+        final int bytes = des.cols();
+        final int words = words(bytes);
+        final byte[] buffer = new byte[des.rows() * bytes];
+        des.get(0, 0, buffer);
+        final long[] codes = new long[des.rows() * words];
+        for (int row = 0; row < des.rows(); row++) {
+            pack(buffer, row * bytes, bytes, codes, row * words);
+        }
+        return codes;
+    }
+
+    public static void pack(byte[] src, int srcOffset, int length, long[] dst, int dstOffset) {
+        for (int i = 0; i < length; i++) {
+            dst[dstOffset + (i >>> 3)] |= (src[srcOffset + i] & 0xFFL) << ((i & 7) << 3);
+        }
+    }
+
+    /**
+     * Packs a descriptor of {@code length} bytes at {@code srcOffset} in a little endian buffer,
+     * the words it packs into must be zero.
+     */
+    public static void pack(ByteBuffer src, int srcOffset, int length, long[] dst, int dstOffset) {
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            dst[dstOffset + (i >>> 3)] = src.getLong(srcOffset + i);
+        }
+        for (; i < length; i++) {
+            dst[dstOffset + (i >>> 3)] |= (src.get(srcOffset + i) & 0xFFL) << ((i & 7) << 3);
+        }
+    }
+
+    public static int distance(long[] a, int aOffset, long[] b, int bOffset, int words) {
+        int distance = 0;
+        for (int w = 0; w < words; w++) {
+            distance += Long.bitCount(a[aOffset + w] ^ b[bOffset + w]);
+        }
+        return distance;
+    }
+
+    /**
+     * Hamming distance between a packed descriptor and one of {@code bytes} bytes at
+     * {@code bOffset} in a little endian buffer.
+     */
+    public static int distance(long[] a, int aOffset, ByteBuffer b, int bOffset, int bytes) {
+        int distance = 0;
+        int w = 0;
+        for (; (w + 1) * 8 <= bytes; w++) {
+            distance += Long.bitCount(a[aOffset + w] ^ b.getLong(bOffset + w * 8));
+        }
+        for (int i = w * 8; i < bytes; i++) {
+            distance += Integer.bitCount(((int) (a[aOffset + (i >>> 3)] >>> ((i & 7) << 3)) ^ b.get(bOffset + i)) & 0xFF);
+        }
+        return distance;
+    }
+
+    /**
+     * Bit {@code bit} of the descriptor at {@code offset} in a buffer, numbered as in the packed
+     * longs.
+     */
+    public static int bit(ByteBuffer src, int offset, int bit) {
+        return (src.get(offset + (bit >>> 3)) >>> (bit & 7)) & 1;
+    }
+}
@@ -0,0 +1,288 @@
+package sh.diqi.circuseyes;
+
+import java.util.Arrays;
+
+/**
+ * Merges or suppresses overlapping detection boxes stored in parallel primitive arrays.
+ * <p>
+ * Boxes are visited by descending score and compared with the boxes kept so far, which are
+ * bucketed in a uniform grid over the extent of all boxes, so each box is only compared with the
+ * kept boxes sharing a cell with it instead of all of them. Instances are reusable, call
+ * {@link #clear()} then {@link #add} the boxes of the next frame.
+ */
+class BoxMerger {
+
+    // Bounds the grid memory, cells grow when boxes are tiny compared to their extent.
+    private static final int MAX_CELLS_PER_SIDE = 64;
+
+    private int mSize;
+    private float[] mBoxes = new float[64 * 4];
+    private float[] mScores = new float[64];
+    private int[] mClasses = new int[64];
+
+    private int mKeptCount;
+    private int[] mKept = new int[64];
+
+    private float mOriginX;
+    private float mOriginY;
+    private float mCellSize;
+    private int mColumns;
+    private int mRows;
+    private int[] mCellHeads = new int[0];
+    private int mEntryCount;
+    private int[] mEntryKept = new int[256];
+    private int[] mEntryNext = new int[256];
+    private int[] mVisited = new int[64];
+
+    public void clear() {
+        mSize = 0;
+        mKeptCount = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Adds a box and returns its index.
+     */
+    public int add(float left, float top, float right, float bottom, float score, int classId) {
+        if (mSize == mScores.length) {
+            int capacity = mSize * 2;
+            mBoxes = Arrays.copyOf(mBoxes, capacity * 4);
+            mScores = Arrays.copyOf(mScores, capacity);
+            mClasses = Arrays.copyOf(mClasses, capacity);
+        }
+        mBoxes[mSize * 4] = left;
+        mBoxes[mSize * 4 + 1] = top;
+        mBoxes[mSize * 4 + 2] = right;
+        mBoxes[mSize * 4 + 3] = bottom;
+        mScores[mSize] = score;
+        mClasses[mSize] = classId;
+        return mSize++;
+    }
+
+    public int getKeptCount() {
+        return mKeptCount;
+    }
+
+    /**
+     * Index of the {@code i}-th kept box, kept boxes are ordered by descending score.
+     */
+    public int getKept(int i) {
+        return mKept[i];
+    }
+
+    public float getLeft(int box) {
+        return mBoxes[box * 4];
+    }
+
+    public float getTop(int box) {
+        return mBoxes[box * 4 + 1];
+    }
+
+    public float getRight(int box) {
+        return mBoxes[box * 4 + 2];
+    }
+
+    public float getBottom(int box) {
+        return mBoxes[box * 4 + 3];
+    }
+
+    /**
+     * Merges every box into the first kept box of the same class containing its centre, which
+     * grows to their union unless it already contains the whole box, boxes merged into none are
+     * kept. Kept boxes are grown in place. This is the grouping of
+     * {@link FMCGDetector#merge(java.util.List)}.
+     *
+     * @return the number of kept boxes
+     */
+    public int merge() {
+        final int[] order = prepare();
+        for (int o = 0; o < mSize; o++) {
+            final int box = order[o];
+            final float cx = (getLeft(box) + getRight(box)) / 2;
+            final float cy = (getTop(box) + getBottom(box)) / 2;
+            // A kept box containing the centre is registered in the cell of the centre.
+            int target = -1;
+            for (int e = mCellHeads[cell(column(cx), row(cy))]; e >= 0; e = mEntryNext[e]) {
+                final int k = mEntryKept[e];
+                final int kept = mKept[k];
+                if ((target < 0 || k < target) && mClasses[kept] == mClasses[box] &&
+                        (contains(kept, box) || (intersects(kept, box) && contains(kept, cx, cy)))) {
+                    target = k;
+                }
+            }
+            if (target < 0) {
+                keep(box);
+            } else if (!contains(mKept[target], box)) {
+                final int kept = mKept[target];
+                mBoxes[kept * 4] = Math.min(getLeft(kept), getLeft(box));
+                mBoxes[kept * 4 + 1] = Math.min(getTop(kept), getTop(box));
+                mBoxes[kept * 4 + 2] = Math.max(getRight(kept), getRight(box));
+                mBoxes[kept * 4 + 3] = Math.max(getBottom(kept), getBottom(box));
+                register(target);
+            }
+        }
+        return mKeptCount;
+    }
+
+    /**
+     * Standard non maximum suppression: drops every box whose intersection over union with a
+     * kept box of the same class is above {@code iouThreshold}.
+     *
+     * @return the number of kept boxes
+     */
+    public int suppress(float iouThreshold) {
+        final int[] order = prepare();
+        if (mVisited.length < mSize) {
+            mVisited = new int[mScores.length];
+        }
+        Arrays.fill(mVisited, 0, mSize, -1);
+        for (int o = 0; o < mSize; o++) {
+            final int box = order[o];
+            boolean suppressed = false;
+            final int lastColumn = column(getRight(box));
+            final int lastRow = row(getBottom(box));
+            for (int r = row(getTop(box)); r <= lastRow && !suppressed; r++) {
+                for (int c = column(getLeft(box)); c <= lastColumn && !suppressed; c++) {
+                    for (int e = mCellHeads[cell(c, r)]; e >= 0; e = mEntryNext[e]) {
+                        final int kept = mKept[mEntryKept[e]];
+                        if (mVisited[kept] == box) {
+                            continue;
+                        }
+                        mVisited[kept] = box;
+                        if (mClasses[kept] == mClasses[box] && iou(kept, box) > iouThreshold) {
+                            suppressed = true;
+                            break;
+                        }
+                    }
+                }
+            }
+            if (!suppressed) {
+                keep(box);
+            }
+        }
+        return mKeptCount;
+    }
+
+    /**
+     * Sizes the grid to the boxes and returns their indexes by descending score, ties in the
+     * order they were added.
+     */
+    private int[] prepare() {
+        mKeptCount = 0;
+        mEntryCount = 0;
+        if (mKept.length < mSize) {
+            mKept = new int[mScores.length];
+        }
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        float extent = 0;
+        final long[] keys = new long[mSize];
+        for (int i = 0; i < mSize; i++) {
+            minX = Math.min(minX, getLeft(i));
+            minY = Math.min(minY, getTop(i));
+            maxX = Math.max(maxX, getRight(i));
+            maxY = Math.max(maxY, getBottom(i));
+            extent += (getRight(i) - getLeft(i)) + (getBottom(i) - getTop(i));
+            // Order preserving int of the score, negated for a descending sort.
+            int bits = Float.floatToIntBits(mScores[i]);
+            bits ^= (bits >> 31) & 0x7fffffff;
+            keys[i] = ((long) ~bits << 32) | i;
+        }
+        Arrays.sort(keys);
+        final int[] order = new int[mSize];
+        for (int i = 0; i < mSize; i++) {
+            order[i] = (int) keys[i];
+        }
+        if (mSize == 0) {
+            mColumns = 0;
+            mRows = 0;
+            return order;
+        }
+        mOriginX = minX;
+        mOriginY = minY;
+        // About the mean box side, so a box covers a handful of cells.
+        mCellSize = Math.max(extent / (2 * mSize), 1f);
+        mCellSize = Math.max(mCellSize, Math.max(maxX - minX, maxY - minY) / MAX_CELLS_PER_SIDE);
+        mColumns = (int) ((maxX - minX) / mCellSize) + 1;
+        mRows = (int) ((maxY - minY) / mCellSize) + 1;
+        if (mCellHeads.length < mColumns * mRows) {
+            mCellHeads = new int[mColumns * mRows];
+        }
+        Arrays.fill(mCellHeads, 0, mColumns * mRows, -1);
+        return order;
+    }
+
+    private void keep(int box) {
+        mKept[mKeptCount] = box;
+        register(mKeptCount++);
+    }
+
+    /**
+     * Adds the {@code k}-th kept box to every cell it covers, cells it was already in only get
+     * a redundant entry.
+     */
+    private void register(int k) {
+        final int box = mKept[k];
+        final int lastColumn = column(getRight(box));
+        final int lastRow = row(getBottom(box));
+        for (int r = row(getTop(box)); r <= lastRow; r++) {
+            for (int c = column(getLeft(box)); c <= lastColumn; c++) {
+                if (mEntryCount == mEntryKept.length) {
+                    mEntryKept = Arrays.copyOf(mEntryKept, mEntryCount * 2);
+                    mEntryNext = Arrays.copyOf(mEntryNext, mEntryCount * 2);
+                }
+                final int cell = cell(c, r);
+                mEntryKept[mEntryCount] = k;
+                mEntryNext[mEntryCount] = mCellHeads[cell];
+                mCellHeads[cell] = mEntryCount++;
+            }
+        }
+    }
+
+    private int column(float x) {
+        return Math.min(Math.max((int) ((x - mOriginX) / mCellSize), 0), mColumns - 1);
+    }
+
+    private int row(float y) {
+        return Math.min(Math.max((int) ((y - mOriginY) / mCellSize), 0), mRows - 1);
+    }
+
+    private int cell(int column, int row) {
+        return row * mColumns + column;
+    }
+
+    // Same semantics as the RectF methods. intersects() does not shrink the box like
+    // RectF.intersect(), which the original merge loop only called on a copy of the location.
+    private boolean contains(int outer, int inner) {
+        return getLeft(outer) < getRight(outer) && getTop(outer) < getBottom(outer) &&
+                getLeft(outer) <= getLeft(inner) && getTop(outer) <= getTop(inner) &&
+                getRight(outer) >= getRight(inner) && getBottom(outer) >= getBottom(inner);
+    }
+
+    private boolean contains(int box, float x, float y) {
+        return getLeft(box) < getRight(box) && getTop(box) < getBottom(box) &&
+                x >= getLeft(box) && x < getRight(box) && y >= getTop(box) && y < getBottom(box);
+    }
+
+    private boolean intersects(int a, int b) {
+        return getLeft(a) < getRight(b) && getLeft(b) < getRight(a) &&
+                getTop(a) < getBottom(b) && getTop(b) < getBottom(a);
+    }
+
+    private float iou(int a, int b) {
+        final float width = Math.min(getRight(a), getRight(b)) - Math.max(getLeft(a), getLeft(b));
+        final float height = Math.min(getBottom(a), getBottom(b)) - Math.max(getTop(a), getTop(b));
+        if (width <= 0 || height <= 0) {
+            return 0;
+        }
+        final float intersection = width * height;
+        final float union = (getRight(a) - getLeft(a)) * (getBottom(a) - getTop(a)) +
+                (getRight(b) - getLeft(b)) * (getBottom(b) - getTop(b)) - intersection;
+        return union > 0 ? intersection / union : 0;
+    }
+}
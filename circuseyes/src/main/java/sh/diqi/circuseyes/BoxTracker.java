@@ -0,0 +1,336 @@
+package sh.diqi.circuseyes;
+
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.video.KalmanFilter;
+import org.opencv.video.Video;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Moves detected boxes along with the frames between two detections.
+ * <p>
+ * Corners found inside every box are followed with pyramidal Lucas-Kanade optical flow on a
+ * downscaled greyscale copy of the frames. The median motion and scale change of the corners of
+ * a box is the measurement of a constant velocity {@link KalmanFilter} over its centre and size,
+ * which smooths the box. A track whose corners are mostly lost is dropped and reported, so the
+ * caller can detect again, while a box too plain to have corners stays in place. Not thread safe.
+ */
+class BoxTracker {
+
+    // Longer side of the greyscale frames the flow is computed on.
+    private static final int TRACK_SIZE = 480;
+    private static final int MAXIMUM_CORNERS = 24;
+    private static final double CORNER_QUALITY = 0.01;
+    private static final double CORNER_DISTANCE = 3;
+    private static final int MINIMUM_CORNERS = 4;
+    private static final float MINIMUM_TRACKED_RATIO = 0.5f;
+    private static final Size WINDOW_SIZE = new Size(15, 15);
+    private static final int PYRAMID_LEVELS = 3;
+    private static final double PROCESS_NOISE = 1e-2;
+    private static final double MEASUREMENT_NOISE = 1e-1;
+
+    private final Mat mRgba = new Mat();
+    private final Mat mGray = new Mat();
+    private Mat mPrevious = new Mat();
+    private Mat mCurrent = new Mat();
+    private float mScale = 1;
+    private final List<Track> mTracks = new ArrayList<>();
+
+    private final MatOfPoint mCorners = new MatOfPoint();
+    private final MatOfPoint2f mPreviousPoints = new MatOfPoint2f();
+    private final MatOfPoint2f mNextPoints = new MatOfPoint2f();
+    private final MatOfByte mStatus = new MatOfByte();
+    private final MatOfFloat mErrors = new MatOfFloat();
+    private float[] mPointBuffer = new float[0];
+    private float[] mNextBuffer = new float[0];
+    private byte[] mStatusBuffer = new byte[0];
+    private float[] mScratch = new float[MAXIMUM_CORNERS * 2];
+
+    /**
+     * Converts the next frame, to be followed by {@link #reset(List)} or {@link #update()}, or
+     * both if the update lost a track. The current frame becomes the previous one, this is the
+     * only place frames are swapped.
+     */
+    public void setFrame(Bitmap frame) {
+        swap();
+        Utils.bitmapToMat(frame, mRgba);
+        Imgproc.cvtColor(mRgba, mGray, Imgproc.COLOR_RGBA2GRAY);
+        mScale = Math.min(1f, TRACK_SIZE / (float) Math.max(frame.getWidth(), frame.getHeight()));
+        if (mScale < 1) {
+            Imgproc.resize(mGray, mCurrent, new Size(), mScale, mScale, Imgproc.INTER_AREA);
+        } else {
+            mGray.copyTo(mCurrent);
+        }
+    }
+
+    /**
+     * Starts tracking the detections of the current frame, forgetting the previous tracks.
+     */
+    public void reset(List<Classifier.Recognition> detections) {
+        release(mTracks);
+        for (Classifier.Recognition detection : detections) {
+            final RectF location = detection.getLocation();
+            final Track track = new Track(detection.getId(), detection.getTitle(), detection.getConfidence(),
+                    location.left * mScale, location.top * mScale, location.right * mScale, location.bottom * mScale);
+            findCorners(track);
+            track.trackable = track.pointCount >= MINIMUM_CORNERS;
+            mTracks.add(track);
+        }
+    }
+
+    /**
+     * Moves the tracks from the previous frame to the current one. Returns false if a track was
+     * lost and dropped, which calls for a new detection.
+     */
+    public boolean update() {
+        boolean intact = true;
+        int total = 0;
+        for (Track track : mTracks) {
+            total += track.pointCount;
+        }
+        if (total > 0) {
+            flow(total);
+        }
+        int offset = 0;
+        for (int i = 0; i < mTracks.size(); i++) {
+            final Track track = mTracks.get(i);
+            final int count = track.pointCount;
+            if (!move(track, offset)) {
+                track.release();
+                mTracks.remove(i--);
+                intact = false;
+            }
+            offset += count;
+        }
+        return intact;
+    }
+
+    /**
+     * Tracked boxes in frame coordinates.
+     */
+    public List<Classifier.Recognition> getRecognitions() {
+        final List<Classifier.Recognition> recognitions = new ArrayList<>(mTracks.size());
+        for (Track track : mTracks) {
+            recognitions.add(new Classifier.Recognition(track.id, track.title, track.confidence,
+                    new RectF(track.left / mScale, track.top / mScale, track.right / mScale, track.bottom / mScale)));
+        }
+        return recognitions;
+    }
+
+    public void release() {
+        release(mTracks);
+        mRgba.release();
+        mGray.release();
+        mPrevious.release();
+        mCurrent.release();
+        mCorners.release();
+        mPreviousPoints.release();
+        mNextPoints.release();
+        mStatus.release();
+        mErrors.release();
+    }
+
+    private void swap() {
+        final Mat previous = mPrevious;
+        mPrevious = mCurrent;
+        mCurrent = previous;
+    }
+
+    private void findCorners(Track track) {
+        final int left = Math.max((int) track.left, 0);
+        final int top = Math.max((int) track.top, 0);
+        final int right = Math.min((int) Math.ceil(track.right), mCurrent.cols());
+        final int bottom = Math.min((int) Math.ceil(track.bottom), mCurrent.rows());
+        track.pointCount = 0;
+        if (right - left < 2 || bottom - top < 2) {
+            return;
+        }
+        final Mat region = mCurrent.submat(top, bottom, left, right);
+        Imgproc.goodFeaturesToTrack(region, mCorners, MAXIMUM_CORNERS, CORNER_QUALITY, CORNER_DISTANCE);
+        region.release();
+        for (Point corner : mCorners.toArray()) {
+            track.points[track.pointCount * 2] = (float) corner.x + left;
+            track.points[track.pointCount * 2 + 1] = (float) corner.y + top;
+            track.pointCount++;
+        }
+    }
+
+    /**
+     * Computes the flow of the corners of every track, in track order, into the buffers.
+     */
+    private void flow(int total) {
+        if (mPointBuffer.length < total * 2) {
+            mPointBuffer = new float[total * 2];
+            mNextBuffer = new float[total * 2];
+            mStatusBuffer = new byte[total];
+        }
+        int offset = 0;
+        for (Track track : mTracks) {
+            System.arraycopy(track.points, 0, mPointBuffer, offset * 2, track.pointCount * 2);
+            offset += track.pointCount;
+        }
+        mPreviousPoints.create(total, 1, CvType.CV_32FC2);
+        mPreviousPoints.put(0, 0, Arrays.copyOf(mPointBuffer, total * 2));
+        Video.calcOpticalFlowPyrLK(mPrevious, mCurrent, mPreviousPoints, mNextPoints, mStatus, mErrors,
+                WINDOW_SIZE, PYRAMID_LEVELS);
+        mNextPoints.get(0, 0, mNextBuffer);
+        mStatus.get(0, 0, mStatusBuffer);
+    }
+
+    /**
+     * Moves a track by the median motion and scale change of its corners found again, returns
+     * false if too few were.
+     */
+    private boolean move(Track track, int offset) {
+        if (!track.trackable) {
+            // Too plain to be followed, it stays until the next detection.
+            return true;
+        }
+        int found = 0;
+        float oldX = 0, oldY = 0, newX = 0, newY = 0;
+        for (int p = 0; p < track.pointCount; p++) {
+            if (mStatusBuffer[offset + p] != 0) {
+                oldX += mPointBuffer[(offset + p) * 2];
+                oldY += mPointBuffer[(offset + p) * 2 + 1];
+                newX += mNextBuffer[(offset + p) * 2];
+                newY += mNextBuffer[(offset + p) * 2 + 1];
+                found++;
+            }
+        }
+        if (found < MINIMUM_CORNERS || found < track.pointCount * MINIMUM_TRACKED_RATIO) {
+            return false;
+        }
+        oldX /= found;
+        oldY /= found;
+        newX /= found;
+        newY /= found;
+        // Median displacement, then median ratio of the distances to the centroids.
+        int n = 0;
+        for (int p = 0; p < track.pointCount; p++) {
+            if (mStatusBuffer[offset + p] != 0) {
+                mScratch[n] = mNextBuffer[(offset + p) * 2] - mPointBuffer[(offset + p) * 2];
+                mScratch[MAXIMUM_CORNERS + n] = mNextBuffer[(offset + p) * 2 + 1] - mPointBuffer[(offset + p) * 2 + 1];
+                n++;
+            }
+        }
+        final float dx = median(mScratch, 0, n);
+        final float dy = median(mScratch, MAXIMUM_CORNERS, n);
+        n = 0;
+        for (int p = 0; p < track.pointCount; p++) {
+            if (mStatusBuffer[offset + p] != 0) {
+                final double before = Math.hypot(mPointBuffer[(offset + p) * 2] - oldX, mPointBuffer[(offset + p) * 2 + 1] - oldY);
+                final double after = Math.hypot(mNextBuffer[(offset + p) * 2] - newX, mNextBuffer[(offset + p) * 2 + 1] - newY);
+                if (before > 1) {
+                    mScratch[n++] = (float) (after / before);
+                }
+            }
+        }
+        final float scale = n > 0 ? median(mScratch, 0, n) : 1;
+
+        final float width = (track.right - track.left) * scale;
+        final float height = (track.bottom - track.top) * scale;
+        track.measured[0] = (track.left + track.right) / 2 + dx;
+        track.measured[1] = (track.top + track.bottom) / 2 + dy;
+        track.measured[2] = width;
+        track.measured[3] = height;
+        track.measurement.put(0, 0, track.measured);
+        track.filter.predict();
+        final Mat state = track.filter.correct(track.measurement);
+        state.get(0, 0, track.state);
+        track.left = track.state[0] - track.state[2] / 2;
+        track.top = track.state[1] - track.state[3] / 2;
+        track.right = track.state[0] + track.state[2] / 2;
+        track.bottom = track.state[1] + track.state[3] / 2;
+
+        // Keeps the corners found again for the next frame.
+        int kept = 0;
+        for (int p = 0; p < track.pointCount; p++) {
+            if (mStatusBuffer[offset + p] != 0) {
+                track.points[kept * 2] = mNextBuffer[(offset + p) * 2];
+                track.points[kept * 2 + 1] = mNextBuffer[(offset + p) * 2 + 1];
+                kept++;
+            }
+        }
+        track.pointCount = kept;
+        return true;
+    }
+
+    private static float median(float[] values, int from, int count) {
+        Arrays.sort(values, from, from + count);
+        return values[from + count / 2];
+    }
+
+    private static void release(List<Track> tracks) {
+        for (Track track : tracks) {
+            track.release();
+        }
+        tracks.clear();
+    }
+
+    private static final class Track {
+        final String id;
+        final String title;
+        final Float confidence;
+        final KalmanFilter filter;
+        final Mat measurement = new Mat(4, 1, CvType.CV_32F);
+        final float[] measured = new float[4];
+        // centre x, centre y, width, height and their velocities.
+        final float[] state = new float[8];
+        final float[] points = new float[MAXIMUM_CORNERS * 2];
+        int pointCount;
+        boolean trackable;
+        float left;
+        float top;
+        float right;
+        float bottom;
+
+        Track(String id, String title, Float confidence, float left, float top, float right, float bottom) {
+            this.id = id;
+            this.title = title;
+            this.confidence = confidence;
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+            filter = new KalmanFilter(8, 4, 0, CvType.CV_32F);
+            final Mat transition = Mat.eye(8, 8, CvType.CV_32F);
+            for (int i = 0; i < 4; i++) {
+                transition.put(i, i + 4, 1);
+            }
+            filter.set_transitionMatrix(transition);
+            filter.set_measurementMatrix(Mat.eye(4, 8, CvType.CV_32F));
+            filter.set_processNoiseCov(scaledIdentity(8, PROCESS_NOISE));
+            filter.set_measurementNoiseCov(scaledIdentity(4, MEASUREMENT_NOISE));
+            filter.set_errorCovPost(Mat.eye(8, 8, CvType.CV_32F));
+            final Mat initial = new Mat(8, 1, CvType.CV_32F);
+            initial.put(0, 0, new float[]{(left + right) / 2, (top + bottom) / 2, right - left, bottom - top, 0, 0, 0, 0});
+            filter.set_statePost(initial);
+        }
+
+        void release() {
+            measurement.release();
+        }
+
+        private static Mat scaledIdentity(int size, double scale) {
+            final Mat identity = Mat.eye(size, size, CvType.CV_32F);
+            Core.multiply(identity, new Scalar(scale), identity);
+            return identity;
+        }
+    }
+}
@@ -18,6 +18,7 @@ package sh.diqi.circuseyes;
 import android.graphics.Bitmap;
 import android.graphics.RectF;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Locale;
 
@@ -78,6 +79,14 @@ public interface Classifier {
             return new RectF(location);
         }
 
+        /**
+         * Copies the location into {@code out} and returns it, without allocating.
+         */
+        public RectF getLocation(RectF out) {
+            out.set(location);
+            return out;
+        }
+
         public void setLocation(RectF location) {
             this.location = location;
         }
@@ -107,6 +116,53 @@ public interface Classifier {
 
     List<Recognition> recognizeImage(Bitmap bitmap);
 
+    /**
+     * Recognizes an image into a reusable batch, keeping its {@code results.capacity()} most
+     * confident detections, without allocating per call.
+     */
+    void recognizeImage(Bitmap bitmap, DetectionBatch results);
+
+    /**
+     * Recognizes an image given as packed RGB bytes of the model input size, read from the
+     * position of {@code rgb}, which is then advanced. A direct buffer is copied into the input
+     * as is, without any Java side pass over the pixels.
+     */
+    void recognizeImage(ByteBuffer rgb, DetectionBatch results);
+
+    /**
+     * Recognizes a camera frame, {@link android.graphics.ImageFormat#NV21},
+     * {@link android.graphics.ImageFormat#YUY2} or {@link android.graphics.PixelFormat#RGBA_8888}
+     * as given by {@code format}, converted and scaled straight into the model input.
+     */
+    void recognizeFrame(ByteBuffer frame, int width, int height, int format, DetectionBatch results);
+
+    /**
+     * Recognizes several images of the same size in as few inference calls as possible, the
+     * results of {@code bitmaps.get(i)} being at index {@code i}.
+     */
+    List<List<Recognition>> recognizeImages(List<Bitmap> bitmaps);
+
+    /**
+     * Same as {@link #recognizeImages(List)}, into reusable batches, the results of
+     * {@code bitmaps.get(i)} going to {@code results.get(i)}.
+     */
+    void recognizeImages(List<Bitmap> bitmaps, List<DetectionBatch> results);
+
+    /**
+     * Time taken to load the model, in ms.
+     */
+    long getLoadTime();
+
+    /**
+     * Time taken by the first inference, warm-up or not, in ms, or -1 if none ran yet.
+     */
+    long getFirstInferenceTime();
+
+    /**
+     * Time taken by the last inference, in ms, or -1 if none ran yet.
+     */
+    long getLastInferenceTime();
+
     void enableStatLogging(final boolean debug);
 
     String getStatString();
@@ -0,0 +1,89 @@
+package sh.diqi.circuseyes;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Times {@link Classifier} backends on the same input, so the faster one can be chosen per
+ * device and model.
+ * <p>
+ * Every classifier first runs untimed warm-up inferences, then {@code runs} timed inferences
+ * through {@link Classifier#recognizeImage(Bitmap, DetectionBatch)}, so only inference and the
+ * backend's own preprocessing are measured.
+ */
+public final class ClassifierBenchmark {
+
+    private static final String TAG = ClassifierBenchmark.class.getSimpleName();
+
+    private ClassifierBenchmark() {
+    }
+
+    public static final class Result {
+        public final String name;
+        public final int runs;
+        public final double minMs;
+        public final double medianMs;
+        public final double p90Ms;
+        public final double meanMs;
+
+        Result(String name, double[] times) {
+            Arrays.sort(times);
+            double sum = 0;
+            for (double time : times) {
+                sum += time;
+            }
+            this.name = name;
+            this.runs = times.length;
+            this.minMs = times[0];
+            this.medianMs = times[times.length / 2];
+            this.p90Ms = times[Math.min(times.length - 1, (int) Math.ceil(times.length * 0.9) - 1)];
+            this.meanMs = sum / times.length;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: %d runs, min %.1f ms, median %.1f ms, p90 %.1f ms, mean %.1f ms",
+                    name, runs, minMs, medianMs, p90Ms, meanMs);
+        }
+    }
+
+    public static Result run(Classifier classifier, Bitmap input, int warmUpRuns, int runs) {
+        if (runs <= 0) {
+            throw new IllegalArgumentException("runs should be positive: " + runs);
+        }
+        final DetectionBatch detections = new DetectionBatch(100);
+        for (int i = 0; i < warmUpRuns; i++) {
+            classifier.recognizeImage(input, detections);
+        }
+        final double[] times = new double[runs];
+        for (int i = 0; i < runs; i++) {
+            final long start = SystemClock.elapsedRealtimeNanos();
+            classifier.recognizeImage(input, detections);
+            times[i] = (SystemClock.elapsedRealtimeNanos() - start) / 1e6;
+        }
+        final Result result = new Result(classifier.getClass().getSimpleName(), times);
+        Log.d(TAG, result.toString());
+        return result;
+    }
+
+    /**
+     * Benchmarks every classifier on the input and returns the one with the lowest median time.
+     */
+    public static Classifier fastest(List<Classifier> classifiers, Bitmap input, int warmUpRuns, int runs) {
+        Classifier fastest = null;
+        double best = Double.MAX_VALUE;
+        for (Classifier classifier : classifiers) {
+            final Result result = run(classifier, input, warmUpRuns, runs);
+            if (result.medianMs < best) {
+                best = result.medianMs;
+                fastest = classifier;
+            }
+        }
+        return fastest;
+    }
+}
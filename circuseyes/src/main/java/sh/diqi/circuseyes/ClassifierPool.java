@@ -0,0 +1,194 @@
+package sh.diqi.circuseyes;
+
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pool of inference sessions of one detection model, shared by every detector using that model.
+ * <p>
+ * A session, with its own graph and buffers, serves one request at a time, so callers borrow one
+ * with {@link #acquire()} for each recognition and give it back with {@link #release}. Each
+ * reference taken with {@link #obtain} allows one more session, which are created lazily, so
+ * detectors of several cameras recognize in parallel while idle sessions are reused by any of
+ * them. The number of sessions is also the number of inferences that may run concurrently.
+ */
+public final class ClassifierPool {
+
+    private static final String TAG = ClassifierPool.class.getSimpleName();
+
+    private static final Map<String, ClassifierPool> sPools = new HashMap<>();
+
+    private final String mKey;
+    private final AssetManager mAssetManager;
+    private final File mCacheDir;
+    private final String mModelFilename;
+    private final String mLabelFilename;
+    private final int mInputSize;
+    private final List<Classifier> mIdle = new ArrayList<>();
+    // First session, warmed up when the pool was obtained, for its cold start costs.
+    private Classifier mFirst;
+    private volatile long mLastInferenceTime = -1;
+    private int mCapacity;
+    private int mCreated;
+
+    private ClassifierPool(String key, AssetManager assetManager, File cacheDir, String modelFilename,
+                           String labelFilename, int inputSize) {
+        mKey = key;
+        mAssetManager = assetManager;
+        mCacheDir = cacheDir;
+        mModelFilename = modelFilename;
+        mLabelFilename = labelFilename;
+        mInputSize = inputSize;
+    }
+
+    /**
+     * Returns the pool of a model, taking a reference on it which allows one more session and
+     * must be given back with {@link #recycle()}. The first session is created right away so that
+     * a broken model fails here, and warmed up in the background.
+     *
+     * @param cacheDir directory a compressed model asset is extracted to so it can be mapped
+     */
+    public static ClassifierPool obtain(AssetManager assetManager, File cacheDir, String modelFilename,
+                                        String labelFilename, int inputSize) throws IOException {
+        final String key = modelFilename + "|" + labelFilename + "|" + inputSize;
+        synchronized (sPools) {
+            ClassifierPool pool = sPools.get(key);
+            if (pool == null) {
+                pool = new ClassifierPool(key, assetManager, cacheDir, modelFilename, labelFilename, inputSize);
+                Classifier first = pool.create();
+                synchronized (pool) {
+                    pool.mFirst = first;
+                    pool.mIdle.add(first);
+                    pool.mCreated = 1;
+                }
+                sPools.put(key, pool);
+            }
+            synchronized (pool) {
+                pool.mCapacity++;
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Gives back a reference taken with {@link #obtain}, closing idle sessions beyond the
+     * remaining capacity. The pool is closed with its last reference.
+     */
+    public void recycle() {
+        final List<Classifier> closing = new ArrayList<>();
+        synchronized (sPools) {
+            synchronized (this) {
+                mCapacity--;
+                while (mCreated > mCapacity && !mIdle.isEmpty()) {
+                    closing.add(mIdle.remove(mIdle.size() - 1));
+                    mCreated--;
+                }
+                if (mCapacity <= 0) {
+                    sPools.remove(mKey);
+                }
+                notifyAll();
+            }
+        }
+        for (Classifier classifier : closing) {
+            classifier.close();
+        }
+    }
+
+    /**
+     * Borrows a session, creating one if the capacity allows it or waiting for one to be
+     * released otherwise.
+     */
+    public Classifier acquire() {
+        synchronized (this) {
+            while (true) {
+                if (mCapacity <= 0) {
+                    throw new IllegalStateException("pool of " + mModelFilename + " is closed");
+                }
+                if (!mIdle.isEmpty()) {
+                    return mIdle.remove(mIdle.size() - 1);
+                }
+                if (mCreated < mCapacity) {
+                    mCreated++;
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("interrupted waiting for a session", e);
+                }
+            }
+        }
+        try {
+            return create();
+        } catch (IOException e) {
+            abandon();
+            throw new IllegalStateException("failed to create a session of " + mModelFilename, e);
+        } catch (RuntimeException e) {
+            abandon();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a session borrowed with {@link #acquire()}.
+     */
+    public void release(Classifier classifier) {
+        mLastInferenceTime = classifier.getLastInferenceTime();
+        boolean close = false;
+        synchronized (this) {
+            if (mCreated > mCapacity) {
+                mCreated--;
+                close = true;
+            } else {
+                mIdle.add(classifier);
+            }
+            notifyAll();
+        }
+        if (close) {
+            classifier.close();
+        }
+    }
+
+    /**
+     * Time taken to load the model for the first session, in ms.
+     */
+    public synchronized long getLoadTime() {
+        return mFirst.getLoadTime();
+    }
+
+    /**
+     * Time taken by the first inference of the first session, its warm-up, in ms, or -1 if it
+     * did not finish yet.
+     */
+    public synchronized long getFirstInferenceTime() {
+        return mFirst.getFirstInferenceTime();
+    }
+
+    /**
+     * Time taken by the last inference of the last session given back, in ms, or -1 if none
+     * was.
+     */
+    public long getLastInferenceTime() {
+        return mLastInferenceTime;
+    }
+
+    private synchronized void abandon() {
+        mCreated--;
+        notifyAll();
+    }
+
+    private Classifier create() throws IOException {
+        final Classifier classifier = TensorFlowObjectDetectionAPIModel.create(mAssetManager, mCacheDir,
+                mModelFilename, mLabelFilename, mInputSize, true);
+        Log.d(TAG, "created a session of " + mModelFilename);
+        return classifier;
+    }
+}
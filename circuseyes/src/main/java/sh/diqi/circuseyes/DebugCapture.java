@@ -0,0 +1,331 @@
+package sh.diqi.circuseyes;
+
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+import android.util.Log;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes debug crops of ROIs and recognitions on a background thread, so debugging can stay
+ * enabled without slowing detection down.
+ * <p>
+ * Only one frame in every {@code sampleInterval} is captured, and only when the bounded queue of
+ * the writer has room, otherwise the capture is dropped. The recognition thread only copies the
+ * regions, compression and writes happen on the writer, which deletes the oldest files once the
+ * captures take more than the disk quota. Captures of a frame go to a directory named after a
+ * hash of sampled rows of its pixels.
+ */
+class DebugCapture {
+
+    private static final String TAG = DebugCapture.class.getSimpleName();
+
+    // Rows of the frame hashed to name its directory.
+    private static final int HASHED_ROWS = 32;
+    private static final int JPEG_QUALITY = 80;
+    // Kinds of captures, each sampled on its own.
+    private static final int ROIS = 0;
+    private static final int RECOGNITIONS = 1;
+
+    private final File mRoot;
+    private final int mSampleInterval;
+    private final long mQuotaBytes;
+    private final ThreadPoolExecutor mWriter;
+    private final ArrayDeque<File> mFiles = new ArrayDeque<>();
+    private long mUsedBytes;
+    private final int[] mFrames = new int[2];
+    private int mDropped;
+    private int[] mRow = new int[0];
+
+    /**
+     * @param root directory of the captures, files already in it count in the quota
+     * @param sampleInterval captures one frame in every {@code sampleInterval}
+     * @param queueSize number of captures waiting to be written before new ones are dropped
+     * @param quotaBytes size of the captures on disk above which the oldest are deleted
+     */
+    DebugCapture(File root, int sampleInterval, int queueSize, long quotaBytes) {
+        mRoot = root;
+        mSampleInterval = Math.max(sampleInterval, 1);
+        mQuotaBytes = quotaBytes;
+        mWriter = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(queueSize, 1)),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, TAG);
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        synchronized (DebugCapture.this) {
+                            mDropped++;
+                        }
+                        // The queue filled up since the frame was sampled, or the writer is closed.
+                        if (r instanceof Capture) {
+                            ((Capture) r).recycle();
+                        }
+                    }
+                });
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                indexExistingFiles();
+            }
+        });
+    }
+
+    /**
+     * Captures the ROIs proposed for a frame, if the frame is sampled.
+     */
+    public void captureRois(Bitmap frame, List<RectF> rois, final long spent) {
+        if (rois.isEmpty() || !sample(ROIS)) {
+            return;
+        }
+        final String dirName = hash(frame);
+        final List<RectF> boxes = clamp(frame, rois);
+        final List<Bitmap> crops = crop(frame, boxes);
+        mWriter.execute(new Capture(crops) {
+            @Override
+            public void run() {
+                for (int i = 0; i < crops.size(); i++) {
+                    if (crops.get(i) == null) {
+                        continue;
+                    }
+                    RectF box = boxes.get(i);
+                    write(crops.get(i), dirName, "roi_" + spent + "ms_b" + boxes.size() + "_" + box.toShortString() + "_" + box.width() + "×" + box.height() + ".jpg");
+                }
+            }
+        });
+    }
+
+    /**
+     * Captures every ROI of a frame with the locations recognized in it drawn, if the frame is
+     * sampled.
+     */
+    public void captureRecognitions(Bitmap frame, List<RectF> rois, List<List<Classifier.Recognition>> results, final long spent) {
+        if (rois.isEmpty() || !sample(RECOGNITIONS)) {
+            return;
+        }
+        final String dirName = hash(frame);
+        final List<RectF> boxes = clamp(frame, rois);
+        final List<Bitmap> crops = crop(frame, boxes);
+        // Locations are copied, callers may move the recognitions while they are drawn.
+        final List<List<RectF>> locations = new ArrayList<>(results.size());
+        for (List<Classifier.Recognition> roiResults : results) {
+            final List<RectF> roiLocations = new ArrayList<>(roiResults.size());
+            for (Classifier.Recognition result : roiResults) {
+                roiLocations.add(result.getLocation());
+            }
+            locations.add(roiLocations);
+        }
+        mWriter.execute(new Capture(crops) {
+            @Override
+            public void run() {
+                final Mat mat = new Mat();
+                for (int i = 0; i < crops.size(); i++) {
+                    if (crops.get(i) == null) {
+                        continue;
+                    }
+                    RectF roi = boxes.get(i);
+                    Bitmap bitmap = crops.get(i);
+                    Utils.bitmapToMat(bitmap, mat);
+                    for (RectF rect : locations.get(i)) {
+                        Imgproc.rectangle(mat, new Point(rect.left - roi.left, rect.top - roi.top), new Point(rect.right - roi.left, rect.bottom - roi.top), new Scalar(255, 0, 0), 2);
+                    }
+                    Utils.matToBitmap(mat, bitmap);
+                    write(bitmap, dirName, "rec_" + spent + "ms_" + roi.toShortString() + "_" + roi.width() + "×" + roi.height() + ".jpg");
+                }
+                mat.release();
+            }
+        });
+    }
+
+    public synchronized int getDroppedCaptures() {
+        return mDropped;
+    }
+
+    /**
+     * Stops the writer once the queued captures are written.
+     */
+    public void close() {
+        mWriter.shutdown();
+    }
+
+    private synchronized boolean sample(int kind) {
+        if (mFrames[kind]++ % mSampleInterval != 0) {
+            return false;
+        }
+        if (mWriter.getQueue().remainingCapacity() == 0) {
+            mDropped++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * FNV-1a hash of evenly spaced rows of the frame, cheap enough for the recognition thread
+     * unlike hashing a compressed copy.
+     */
+    private synchronized String hash(Bitmap frame) {
+        final int width = frame.getWidth();
+        final int height = frame.getHeight();
+        if (mRow.length < width) {
+            mRow = new int[width];
+        }
+        long hash = 0xcbf29ce484222325L;
+        final int rows = Math.min(HASHED_ROWS, height);
+        for (int r = 0; r < rows; r++) {
+            frame.getPixels(mRow, 0, width, 0, (int) ((long) r * height / rows), width, 1);
+            for (int x = 0; x < width; x++) {
+                hash = (hash ^ mRow[x]) * 0x100000001b3L;
+            }
+        }
+        return Long.toHexString(hash) + "_" + width + "x" + height;
+    }
+
+    /**
+     * Copies of the ROIs rounded to pixels and clipped to the frame, empty for those outside it.
+     */
+    private static List<RectF> clamp(Bitmap frame, List<RectF> rois) {
+        final List<RectF> boxes = new ArrayList<>(rois.size());
+        for (RectF roi : rois) {
+            final float left = Math.max(Math.round(roi.left), 0);
+            final float top = Math.max(Math.round(roi.top), 0);
+            final float right = Math.min(Math.round(roi.right), frame.getWidth());
+            final float bottom = Math.min(Math.round(roi.bottom), frame.getHeight());
+            boxes.add(left < right && top < bottom ? new RectF(left, top, right, bottom) : new RectF());
+        }
+        return boxes;
+    }
+
+    /**
+     * Crops the clamped boxes out of the frame, null for the empty ones so crops stay aligned
+     * with the boxes.
+     */
+    private static List<Bitmap> crop(Bitmap frame, List<RectF> boxes) {
+        final List<Bitmap> crops = new ArrayList<>(boxes.size());
+        for (RectF box : boxes) {
+            crops.add(box.isEmpty() ? null : Bitmap.createBitmap(frame, (int) box.left, (int) box.top,
+                    (int) box.width(), (int) box.height()));
+        }
+        return crops;
+    }
+
+    private void write(Bitmap bitmap, String dirName, String fileName) {
+        final File dir = new File(mRoot, dirName);
+        if (!dir.exists() && !dir.mkdirs()) {
+            bitmap.recycle();
+            return;
+        }
+        final File file = new File(dir, fileName);
+        // The same frame, timing and region give the same name, the old file is replaced.
+        if (mFiles.remove(file)) {
+            mUsedBytes -= file.length();
+        }
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+        } catch (IOException e) {
+            Log.w(TAG, "failed to write " + file, e);
+        } finally {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "failed to close " + file, e);
+            }
+            bitmap.recycle();
+        }
+        if (file.exists()) {
+            mFiles.addLast(file);
+            mUsedBytes += file.length();
+            evict();
+        }
+    }
+
+    /**
+     * Deletes the oldest captures, and their directories once empty, until they fit the quota.
+     */
+    private void evict() {
+        while (mUsedBytes > mQuotaBytes && !mFiles.isEmpty()) {
+            final File oldest = mFiles.removeFirst();
+            mUsedBytes -= oldest.length();
+            if (oldest.delete()) {
+                final String[] left = oldest.getParentFile().list();
+                if (left != null && left.length == 0) {
+                    oldest.getParentFile().delete();
+                }
+            }
+        }
+    }
+
+    private void indexExistingFiles() {
+        final List<File> files = new ArrayList<>();
+        final File[] dirs = mRoot.listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                final File[] children = dir.listFiles();
+                if (children != null) {
+                    files.addAll(Arrays.asList(children));
+                }
+            }
+        }
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long m1 = f1.lastModified();
+                long m2 = f2.lastModified();
+                return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            mFiles.addLast(file);
+            mUsedBytes += file.length();
+        }
+        evict();
+    }
+
+    /**
+     * Capture of crops, which are recycled if it is rejected by the writer.
+     */
+    private abstract static class Capture implements Runnable {
+        private final List<Bitmap> mCrops;
+
+        Capture(List<Bitmap> crops) {
+            mCrops = crops;
+        }
+
+        void recycle() {
+            for (Bitmap crop : mCrops) {
+                if (crop != null) {
+                    crop.recycle();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package sh.diqi.circuseyes;
+
+import android.graphics.Matrix;
+import android.graphics.RectF;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Reusable, fixed capacity container of detections stored in parallel primitive arrays, filled
+ * by {@link Classifier#recognizeImage(android.graphics.Bitmap, DetectionBatch)} without
+ * allocating. It keeps the {@link #capacity()} most confident detections offered since the last
+ * {@link #clear()}, ordered by descending score.
+ * <p>
+ * Detections only store their class id, labels are looked up in the label table of the
+ * classifier, shared by all its batches. {@link #asList()} gives the detections as
+ * {@link Classifier.Recognition}s, created on first access, for internal use; lists handed to
+ * callers are copied out of it.
+ */
+public class DetectionBatch {
+
+    private static final String[] NO_LABELS = new String[0];
+
+    private final int mCapacity;
+    private int mSize;
+    private final float[] mScores;
+    // left, top, right, bottom of every detection.
+    private final float[] mLocations;
+    private final int[] mClasses;
+    private final int[] mIndexes;
+    private String[] mLabels = NO_LABELS;
+    // Created on the first transform.
+    private RectF mScratch;
+
+    public DetectionBatch(int capacity) {
+        mCapacity = capacity;
+        mScores = new float[capacity];
+        mLocations = new float[capacity * 4];
+        mClasses = new int[capacity];
+        mIndexes = new int[capacity];
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    /**
+     * Sets the labels of the class ids, the table is shared, not copied.
+     */
+    public void setLabels(String[] labels) {
+        mLabels = labels != null ? labels : NO_LABELS;
+    }
+
+    /**
+     * Index of the detection in the output of the model.
+     */
+    public int getIndex(int i) {
+        return mIndexes[i];
+    }
+
+    public int getClassId(int i) {
+        return mClasses[i];
+    }
+
+    /**
+     * Label of the class of detection {@code i}, or null if its class id is not in the label
+     * table.
+     */
+    public String getLabel(int i) {
+        final int classId = mClasses[i];
+        return classId >= 0 && classId < mLabels.length ? mLabels[classId] : null;
+    }
+
+    public float getScore(int i) {
+        return mScores[i];
+    }
+
+    public float getLeft(int i) {
+        return mLocations[i * 4];
+    }
+
+    public float getTop(int i) {
+        return mLocations[i * 4 + 1];
+    }
+
+    public float getRight(int i) {
+        return mLocations[i * 4 + 2];
+    }
+
+    public float getBottom(int i) {
+        return mLocations[i * 4 + 3];
+    }
+
+    /**
+     * Copies the location of detection {@code i} into {@code out} and returns it.
+     */
+    public RectF getLocation(int i, RectF out) {
+        out.set(mLocations[i * 4], mLocations[i * 4 + 1], mLocations[i * 4 + 2], mLocations[i * 4 + 3]);
+        return out;
+    }
+
+    /**
+     * Adds a detection if it is among the {@link #capacity()} best offered so far, dropping the
+     * least confident one when full. Returns false if the detection was not kept.
+     */
+    public boolean offer(int index, int classId, float score,
+                         float left, float top, float right, float bottom) {
+        if (mCapacity == 0 || (mSize == mCapacity && mScores[mSize - 1] >= score)) {
+            return false;
+        }
+        int pos = mSize < mCapacity ? mSize++ : mSize - 1;
+        while (pos > 0 && mScores[pos - 1] < score) {
+            move(pos - 1, pos);
+            pos--;
+        }
+        mIndexes[pos] = index;
+        mClasses[pos] = classId;
+        mScores[pos] = score;
+        mLocations[pos * 4] = left;
+        mLocations[pos * 4 + 1] = top;
+        mLocations[pos * 4 + 2] = right;
+        mLocations[pos * 4 + 3] = bottom;
+        return true;
+    }
+
+    /**
+     * Drops the detections scoring below {@code minimumScore}.
+     */
+    public void truncate(float minimumScore) {
+        while (mSize > 0 && mScores[mSize - 1] < minimumScore) {
+            mSize--;
+        }
+    }
+
+    /**
+     * Maps the location of every detection through {@code matrix}, such as from model input to
+     * frame coordinates.
+     */
+    public void transform(Matrix matrix) {
+        if (mScratch == null) {
+            mScratch = new RectF();
+        }
+        for (int i = 0; i < mSize; i++) {
+            matrix.mapRect(getLocation(i, mScratch));
+            mLocations[i * 4] = mScratch.left;
+            mLocations[i * 4 + 1] = mScratch.top;
+            mLocations[i * 4 + 2] = mScratch.right;
+            mLocations[i * 4 + 3] = mScratch.bottom;
+        }
+    }
+
+    /**
+     * Copies the detections into new {@link Classifier.Recognition}s, identified by their index
+     * in the output of the model.
+     */
+    public List<Classifier.Recognition> toRecognitions() {
+        final List<Classifier.Recognition> recognitions = new ArrayList<>(mSize);
+        for (int i = 0; i < mSize; i++) {
+            recognitions.add(newRecognition(i));
+        }
+        return recognitions;
+    }
+
+    /**
+     * Returns a fixed size list of the current detections whose {@link Classifier.Recognition}s
+     * are only created when first read. It reads the batch, so it must not be used once the
+     * batch is cleared or refilled.
+     */
+    public List<Classifier.Recognition> asList() {
+        return new RecognitionList(this);
+    }
+
+    private Classifier.Recognition newRecognition(int i) {
+        return new Classifier.Recognition(String.valueOf(mIndexes[i]), getLabel(i), mScores[i],
+                getLocation(i, new RectF()));
+    }
+
+    private void move(int from, int to) {
+        mIndexes[to] = mIndexes[from];
+        mClasses[to] = mClasses[from];
+        mScores[to] = mScores[from];
+        System.arraycopy(mLocations, from * 4, mLocations, to * 4, 4);
+    }
+
+    private static final class RecognitionList extends AbstractList<Classifier.Recognition> implements RandomAccess {
+        private final DetectionBatch mBatch;
+        private final Classifier.Recognition[] mRecognitions;
+
+        RecognitionList(DetectionBatch batch) {
+            mBatch = batch;
+            mRecognitions = new Classifier.Recognition[batch.size()];
+        }
+
+        @Override
+        public Classifier.Recognition get(int i) {
+            if (mRecognitions[i] == null) {
+                mRecognitions[i] = mBatch.newRecognition(i);
+            }
+            return mRecognitions[i];
+        }
+
+        @Override
+        public int size() {
+            return mRecognitions.length;
+        }
+    }
+}
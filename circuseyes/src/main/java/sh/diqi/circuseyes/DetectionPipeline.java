@@ -0,0 +1,293 @@
+package sh.diqi.circuseyes;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Three stage detection pipeline, so that converting a frame, running the model and handling
+ * its results overlap instead of adding up:
+ * <ul>
+ * <li>preprocess, on the thread submitting the frame, which converts it into the model input,
+ * so the caller can reuse the frame as soon as {@code submit} returns,</li>
+ * <li>inference, on a dedicated thread running the classifier,</li>
+ * <li>postprocess, on another thread handing the detections to the {@link Callback}.</li>
+ * </ul>
+ * Every frame in flight owns a slot holding its input tensor and its detections, there is one
+ * slot per stage so the input and output buffers of consecutive frames alternate. Frames wait for
+ * inference in a {@link FrameScheduler}, which by default only keeps the latest one: once a new
+ * frame is converted it replaces a frame still waiting, whose slot is freed, so results lag by
+ * at most one inference under load. With a queue size, frames wait in order and new ones are dropped once it is full.
+ */
+class DetectionPipeline {
+
+    private static final String TAG = DetectionPipeline.class.getSimpleName();
+
+    public interface Callback {
+        /**
+         * Called on the postprocess thread with the detections of a frame, in model input
+         * coordinates, and the transform from model input to frame coordinates. Both are only
+         * valid during the call.
+         */
+        void onDetections(long frame, DetectionBatch detections, Matrix inputToFrame);
+    }
+
+    private final Classifier mClassifier;
+    private final int mInputSize;
+    private final Callback mCallback;
+    private final FrameScheduler<Slot> mScheduler;
+    private final BlockingQueue<Slot> mFree;
+    private final BlockingQueue<Slot> mPostprocessQueue;
+    private final Thread mInferenceThread;
+    private final Thread mPostprocessThread;
+    // Serializes producers, which never wait for the inference or postprocess threads.
+    private final Object mSubmitLock = new Object();
+    private volatile boolean mStopped;
+    private long mFrames;
+    private long mMaxLatency;
+    private long mTotalLatency;
+
+    /**
+     * @param queueSize number of frames waiting for inference in order, 0 to only keep the latest
+     */
+    DetectionPipeline(Classifier classifier, int inputSize, int maxDetections, int queueSize, Callback callback) {
+        mClassifier = classifier;
+        mInputSize = inputSize;
+        mCallback = callback;
+        mScheduler = new FrameScheduler<>(queueSize);
+        // One slot per waiting frame, plus the ones being converted, in inference and in
+        // postprocess.
+        final int slots = mScheduler.capacity() + 3;
+        mFree = new ArrayBlockingQueue<>(slots);
+        mPostprocessQueue = new ArrayBlockingQueue<>(slots);
+        for (int i = 0; i < slots; i++) {
+            mFree.add(new Slot(inputSize, maxDetections));
+        }
+        mInferenceThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runInference();
+            }
+        }, TAG + "-inference");
+        mPostprocessThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runPostprocess();
+            }
+        }, TAG + "-postprocess");
+        mInferenceThread.setDaemon(true);
+        mPostprocessThread.setDaemon(true);
+    }
+
+    public void start() {
+        mInferenceThread.start();
+        mPostprocessThread.start();
+    }
+
+    /**
+     * Stops both threads, waiting for the frame being inferred to finish so the classifier can
+     * be closed right after. Frames still queued are dropped, frames submitted from now on are
+     * refused. Producers are not blocked while the threads finish.
+     */
+    public void stop() {
+        mStopped = true;
+        mInferenceThread.interrupt();
+        mPostprocessThread.interrupt();
+        try {
+            mInferenceThread.join();
+            mPostprocessThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Waits for a producer still converting a frame, any later one sees mStopped.
+        synchronized (mSubmitLock) {
+            releaseSlots(mFree);
+            Slot waiting;
+            while ((waiting = mScheduler.poll()) != null) {
+                waiting.input.recycle();
+            }
+            releaseSlots(mPostprocessQueue);
+        }
+        final long processed = mScheduler.getProcessedFrames();
+        Log.d(TAG, mScheduler + ", latency " + (processed > 0 ? mTotalLatency / processed : 0)
+                + " ms on average, " + mMaxLatency + " ms at most");
+    }
+
+    private static void releaseSlots(BlockingQueue<Slot> slots) {
+        Slot slot;
+        while ((slot = slots.poll()) != null) {
+            slot.input.recycle();
+        }
+    }
+
+    /**
+     * Draws {@code frame} through {@code frameToInput} into the input of a free slot and queues
+     * it for inference. Returns false if the frame was dropped.
+     */
+    public boolean submit(Bitmap frame, Matrix frameToInput) {
+        synchronized (mSubmitLock) {
+            final Slot slot = acquire();
+            if (slot == null) {
+                return false;
+            }
+            slot.canvas.drawBitmap(frame, frameToInput, null);
+            slot.input.getPixels(slot.pixels, 0, mInputSize, 0, 0, mInputSize, mInputSize);
+            for (int i = 0; i < slot.pixels.length; i++) {
+                slot.bytes[i * 3] = (byte) ((slot.pixels[i] >> 16) & 0xFF);
+                slot.bytes[i * 3 + 1] = (byte) ((slot.pixels[i] >> 8) & 0xFF);
+                slot.bytes[i * 3 + 2] = (byte) (slot.pixels[i] & 0xFF);
+            }
+            slot.rgb.clear();
+            slot.rgb.put(slot.bytes);
+            frameToInput.invert(slot.inputToFrame);
+            return enqueue(slot);
+        }
+    }
+
+    /**
+     * Converts a NV21, YUY2 or RGBA camera frame into the input of a free slot and queues it for
+     * inference. Returns false if the frame was dropped.
+     */
+    public boolean submit(ByteBuffer frame, int width, int height, int format) {
+        synchronized (mSubmitLock) {
+            final Slot slot = acquire();
+            if (slot == null) {
+                return false;
+            }
+            try {
+                FrameConverter.toRgb(frame, width, height, format, slot.rgb, mInputSize, mInputSize);
+            } catch (RuntimeException e) {
+                mFree.add(slot);
+                throw e;
+            }
+            slot.inputToFrame.reset();
+            slot.inputToFrame.postScale(width / (float) mInputSize, height / (float) mInputSize);
+            return enqueue(slot);
+        }
+    }
+
+    public long getDroppedFrames() {
+        return mScheduler.getDroppedFrames();
+    }
+
+    public long getCoalescedFrames() {
+        return mScheduler.getCoalescedFrames();
+    }
+
+    public long getProcessedFrames() {
+        return mScheduler.getProcessedFrames();
+    }
+
+    /**
+     * Returns a free slot to convert the new frame into, or null if it has to be dropped or the
+     * pipeline is stopped. The frame waiting for inference keeps its slot until the new frame
+     * is converted, so a failed conversion does not lose it.
+     */
+    private Slot acquire() {
+        if (mStopped) {
+            return null;
+        }
+        final Slot slot = mFree.poll();
+        if (slot == null) {
+            mScheduler.drop();
+        }
+        return slot;
+    }
+
+    private boolean enqueue(Slot slot) {
+        slot.frame = ++mFrames;
+        slot.submitTime = SystemClock.uptimeMillis();
+        // Only counted as coalesced now that the new frame is ready to replace it.
+        final Slot replaced = mScheduler.reclaim();
+        if (replaced != null) {
+            mFree.add(replaced);
+        }
+        if (!mScheduler.offer(slot)) {
+            mFree.add(slot);
+            return false;
+        }
+        return true;
+    }
+
+    private void runInference() {
+        Slot slot = null;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                slot = mScheduler.take();
+                slot.rgb.clear();
+                try {
+                    mClassifier.recognizeImage(slot.rgb, slot.detections);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "failed to infer frame " + slot.frame, e);
+                    mFree.add(slot);
+                    slot = null;
+                    continue;
+                }
+                mPostprocessQueue.put(slot);
+                slot = null;
+            }
+        } catch (InterruptedException e) {
+            // Stopped.
+        } finally {
+            // A slot taken but not handed over is given back, so stop() releases every slot.
+            if (slot != null) {
+                mFree.add(slot);
+            }
+        }
+    }
+
+    private void runPostprocess() {
+        Slot slot = null;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                slot = mPostprocessQueue.take();
+                try {
+                    mCallback.onDetections(slot.frame, slot.detections, slot.inputToFrame);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "failed to handle frame " + slot.frame, e);
+                }
+                final long latency = SystemClock.uptimeMillis() - slot.submitTime;
+                mTotalLatency += latency;
+                mMaxLatency = Math.max(mMaxLatency, latency);
+                mFree.add(slot);
+                slot = null;
+            }
+        } catch (InterruptedException e) {
+            // Stopped.
+        } finally {
+            if (slot != null) {
+                mFree.add(slot);
+            }
+        }
+    }
+
+    /**
+     * Buffers of one frame in flight.
+     */
+    private static final class Slot {
+        final Bitmap input;
+        final Canvas canvas;
+        final int[] pixels;
+        final byte[] bytes;
+        final ByteBuffer rgb;
+        final DetectionBatch detections;
+        final Matrix inputToFrame = new Matrix();
+        long frame;
+        long submitTime;
+
+        Slot(int inputSize, int maxDetections) {
+            input = Bitmap.createBitmap(inputSize, inputSize, Bitmap.Config.ARGB_8888);
+            canvas = new Canvas(input);
+            pixels = new int[inputSize * inputSize];
+            bytes = new byte[inputSize * inputSize * 3];
+            rgb = ByteBuffer.allocateDirect(inputSize * inputSize * 3);
+            detections = new DetectionBatch(maxDetections);
+        }
+    }
+}
@@ -5,7 +5,9 @@ import android.content.Context;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.ImageFormat;
 import android.graphics.Matrix;
+import android.graphics.PixelFormat;
 import android.graphics.RectF;
 import android.os.SystemClock;
 import android.util.Log;
@@ -15,16 +17,15 @@ import android.view.Surface;
 import org.opencv.android.OpenCVLoader;
 import org.opencv.android.Utils;
 import org.opencv.core.Core;
-import org.opencv.core.DMatch;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfDouble;
 import org.opencv.core.MatOfKeyPoint;
-import org.opencv.core.MatOfPoint;
 import org.opencv.core.Point;
 import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
 import org.opencv.core.Size;
-import org.opencv.features2d.BFMatcher;
+import org.opencv.features2d.BulkKnnMatcher;
 import org.opencv.features2d.DescriptorExtractor;
 import org.opencv.features2d.FeatureDetector;
 import org.opencv.imgcodecs.Imgcodecs;
@@ -32,19 +33,24 @@ import org.opencv.imgproc.Imgproc;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.math.BigInteger;
 import java.nio.ByteBuffer;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Created by zengjing on 2017/12/23.
@@ -53,6 +59,9 @@ import java.util.Map;
 public class FMCGDetector {
 
     private static final boolean DEBUG = true;
+    private static final int DEBUG_SAMPLE_INTERVAL = 10;
+    private static final int DEBUG_QUEUE_SIZE = 4;
+    private static final long DEBUG_QUOTA_BYTES = 64 * 1024 * 1024;
 
     public static enum BG {
         GREEN,
@@ -67,6 +76,20 @@ public class FMCGDetector {
         }
     }
 
+    /**
+     * How {@link #analyze(Bitmap)} picks the catalog faces worth a full match.
+     */
+    public static enum CandidateIndex {
+        /**
+         * Votes of hashed nearest neighbours.
+         */
+        HASH,
+        /**
+         * TF-IDF scores of a vocabulary tree.
+         */
+        VOCABULARY_TREE
+    }
+
     public interface DetectCallback {
         public void onFrame(final ByteBuffer frame);
 
@@ -75,20 +98,26 @@ public class FMCGDetector {
 
     private static final String TAG = FMCGDetector.class.getSimpleName();
 
-    private static final double THRESHOLD_THRESH = 128;
-    private static final double THRESHOLD_MAXVAL = 255;
-    private static final int THRESHOLD_TYPE = 1;
-    private static final double KERNEL_WIDTH = 8;
-    private static final double KERNEL_HEIGHT = 3;
-    private static final int DILATE_SIZE = 256;
-    private static final int DILATE_ITERATIONS = 2;
     private static final float MINIMUM_CONFIDENCE = 0.1f;
     private static final float MINIMUM_ROI_AREA = 2048;
     private static final float MAXIMUM_ROI_AREA = 2048 * 1536;
-    private static final int MINIMUM_ROI_NUM = 3;
+    private static final int MAXIMUM_ROI_NUM = 16;
+    private static final float ROI_TILE_OVERLAP = 0.25f;
+    private static final int MAXIMUM_CANDIDATE_FACES = 16;
+    private static final float MATCH_RATIO = 0.75f;
+    private static final int MINIMUM_GOOD_MATCHES = 5;
+    private static final int MAXIMUM_DETECTIONS = 100;
+    private static final double TILE_MINIMUM_CONTRAST = 8;
+    private static final double TILE_CHECK_SCALE = 1 / 8d;
+    private static final float TILE_IOU_THRESHOLD = 0.5f;
+    private static final int TRACK_INTERVAL = 5;
+    private static final float MOTION_MINIMUM_RATIO = 0.01f;
+    private static final float MOTION_MARGIN = 0.05f;
+    private static final int FEATURE_DETECTOR = FeatureDetector.BRISK;
+    private static final int DESCRIPTOR_EXTRACTOR = DescriptorExtractor.BRISK;
 
     private Context mContext;
-    private Classifier mDetector;
+    private ClassifierPool mDetectors;
     private int mImageWidth;
     private int mImageHeight;
     private BG mImageBgColor;
@@ -96,20 +125,55 @@ public class FMCGDetector {
     private int mInputSize = 300;
     private int mSensorOrientation;
 
-    private Bitmap mBitmap;
+    private DebugCapture mDebugCapture;
 
     private DetectCallback mDetectCallback;
+    private final BoxMerger mBoxMerger = new BoxMerger();
+    // Guarded by mBoxMerger.
+    private final RectF mScratchRect = new RectF();
+    private final RoiProposer mRoiProposer = new RoiProposer();
+    private final BoxTracker mTracker = new BoxTracker();
+    private int mTrackInterval = TRACK_INTERVAL;
+    private int mTrackedFrames;
+    private final MotionGate mMotionGate = new MotionGate(false);
+    private float mMotionThreshold = MOTION_MINIMUM_RATIO;
+    private List<Classifier.Recognition> mMotionResults;
+    // Read without locking by the frame producers, started and stopped under the detector lock.
+    private volatile DetectionPipeline mPipeline;
+    private volatile Classifier mPipelineDetector;
+    private volatile FrameTransform mFrameToInput;
+    private volatile boolean mStreaming;
+    private int mStreamWidth;
+    private int mStreamHeight;
+    private int mStreamFormat;
+    private final AtomicLong mStreamDropped = new AtomicLong();
 
     private FeatureDetector mFeatureDetector;
     private DescriptorExtractor mDescriptorExtractor;
-    private BFMatcher mBFMatcher;
-    private Map<String, List<Map<String, Object>>> mFeatureIndex;
+    private BulkKnnMatcher mKnnMatcher;
+    // Snapshot read without locking by analyses, replaced as a whole by updates.
+    private volatile FeatureIndex mFeatureIndex;
+    // Serializes updates of the catalog and of its file, analyses never take it.
+    private final Object mCatalogUpdateLock = new Object();
+    private File mCatalogFile;
+    private long mCatalogVersion;
+    private CandidateIndex mCandidateIndex = CandidateIndex.HASH;
+    // Guards the executor and the match limit, analyses read them, setParallelMatching writes.
+    private final ReentrantReadWriteLock mMatchLock = new ReentrantReadWriteLock();
+    private ExecutorService mMatchExecutor;
+    private int mMaximumMatches;
+    private boolean mNativeMatching = HammingMatcher.isAvailable();
+
+    // Disabled unless enabled with setFrameCache.
+    private volatile FrameCache<List<Classifier.Recognition>> mRecognitionCache;
+    private volatile FrameCache<Pair<BG, List<Classifier.Recognition>>> mRoiRecognitionCache;
+    private volatile FrameCache<List<String>> mAnalysisCache;
 
     public FMCGDetector(final Context context, final String candidatesDir) throws IOException {
         mContext = context;
-        mFeatureDetector = FeatureDetector.create(FeatureDetector.BRISK);
-        mDescriptorExtractor = DescriptorExtractor.create(DescriptorExtractor.BRISK);
-        mBFMatcher = BFMatcher.create(Core.NORM_HAMMING, false);
+        mFeatureDetector = FeatureDetector.create(FEATURE_DETECTOR);
+        mDescriptorExtractor = DescriptorExtractor.create(DESCRIPTOR_EXTRACTOR);
+        mKnnMatcher = new BulkKnnMatcher(Core.NORM_HAMMING, 2);
         buildFeatureIndex(candidatesDir);
     }
 
@@ -120,7 +184,11 @@ public class FMCGDetector {
         mImageBgColor = color;
         mSensorOrientation = 90 - getScreenOrientation(context);
 //        mInputSize = Math.max(width, height);
-        mDetector = TensorFlowObjectDetectionAPIModel.create(context.getAssets(), modelFile, labelFile, mInputSize);
+        mDetectors = ClassifierPool.obtain(context.getAssets(), context.getCacheDir(), modelFile, labelFile, mInputSize);
+        File externalDir = context.getExternalFilesDir(null);
+        if (DEBUG && externalDir != null) {
+            mDebugCapture = new DebugCapture(new File(externalDir, "debug"), DEBUG_SAMPLE_INTERVAL, DEBUG_QUEUE_SIZE, DEBUG_QUOTA_BYTES);
+        }
     }
 
     public FMCGDetector(final Context context, final String modelFile, final String labelFile, final int width, final int height, final BG color, final DetectCallback callback) throws NullPointerException, IOException {
@@ -129,51 +197,260 @@ public class FMCGDetector {
             throw new NullPointerException("callback should not be null");
         }
         mDetectCallback = callback;
-        mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
     }
 
     private void buildFeatureIndex(String candidatesDir) throws IOException {
-        mFeatureIndex = new HashMap<>();
         String dirPath = candidatesDir.split("file:///android_asset/")[1];
         AssetManager assetManager = mContext.getAssets();
-        for (String file : assetManager.list(dirPath)) {
-            String filePath = dirPath + "/" + file;
-            Log.d(TAG, filePath);
-            File cacheFile = new File(mContext.getCacheDir() + "/" + file);
+        String[] files = assetManager.list(dirPath);
+        // Catalogs extracted with other settings are extracted again.
+        String extractor = "detector=" + FEATURE_DETECTOR + ",extractor=" + DESCRIPTOR_EXTRACTOR + ",opencv=" + Core.VERSION;
+        long version = FeatureCatalogFile.version(assetManager, dirPath, files, extractor);
+        File catalogFile = new File(mContext.getFilesDir(), "catalog_" + dirPath.replace('/', '_') + ".bin");
+        final long startTime = SystemClock.uptimeMillis();
+        mCatalogFile = catalogFile;
+        mCatalogVersion = version;
+        FeatureCatalog catalog = FeatureCatalogFile.read(catalogFile, version);
+        if (catalog != null) {
+            Log.d(TAG, (SystemClock.uptimeMillis() - startTime) + " ms taken to map " + catalogFile);
+        } else {
+            catalog = extractCatalog(dirPath, files);
+            persistCatalog(catalog);
+            Log.d(TAG, (SystemClock.uptimeMillis() - startTime) + " ms taken to extract " + files.length + " candidates");
+        }
+        Log.d(TAG, catalog.toString());
+        mFeatureIndex = indexCatalog(catalog, null);
+    }
+
+    /**
+     * Builds the candidate index of a catalog. The vocabulary tree is clustered only once per
+     * asset set and persisted next to the catalog file, later catalogs are quantized into the
+     * vocabulary of {@code previous} or of that file.
+     */
+    private FeatureIndex indexCatalog(FeatureCatalog catalog, FeatureIndex previous) {
+        final long startTime = SystemClock.uptimeMillis();
+        final FaceRanker ranker;
+        switch (mCandidateIndex) {
+            case VOCABULARY_TREE:
+                if (previous != null && previous.ranker instanceof VocabularyTree) {
+                    ranker = ((VocabularyTree) previous.ranker).update(catalog);
+                    break;
+                }
+                File treeFile = mCatalogFile != null ? new File(mCatalogFile.getPath() + ".tree") : null;
+                VocabularyTree tree = treeFile != null ? VocabularyTree.read(treeFile, mCatalogVersion, catalog) : null;
+                if (tree == null) {
+                    tree = VocabularyTree.build(catalog);
+                    if (treeFile != null) {
+                        try {
+                            tree.write(treeFile, mCatalogVersion);
+                        } catch (IOException e) {
+                            Log.w(TAG, "failed to persist vocabulary tree", e);
+                        }
+                    }
+                }
+                ranker = tree;
+                break;
+            case HASH:
+            default:
+                ranker = HammingHashIndex.build(catalog);
+                break;
+        }
+        Log.d(TAG, (SystemClock.uptimeMillis() - startTime) + " ms taken to index " + catalog.getFaceCount() + " faces");
+        return new FeatureIndex(catalog, ranker);
+    }
+
+    private void persistCatalog(FeatureCatalog catalog) {
+        if (mCatalogFile == null) {
+            return;
+        }
+        try {
+            FeatureCatalogFile.write(mCatalogFile, mCatalogVersion, catalog);
+        } catch (IOException e) {
+            Log.w(TAG, "failed to persist feature catalog", e);
+        }
+    }
+
+    /**
+     * Selects how candidate faces are shortlisted, rebuilding the index if it changes.
+     */
+    public void setCandidateIndex(CandidateIndex candidateIndex) {
+        synchronized (mCatalogUpdateLock) {
+            if (mCandidateIndex == candidateIndex) {
+                return;
+            }
+            mCandidateIndex = candidateIndex;
+            if (mFeatureIndex != null) {
+                mFeatureIndex = indexCatalog(mFeatureIndex.catalog, null);
+                invalidateAnalysisCache();
+            }
+        }
+    }
+
+    /**
+     * Adds faces to a SKU, creating it if needed. Only the given images are extracted and only
+     * their descriptors are appended to the catalog file. The index is swapped atomically once
+     * written, so running {@link #analyze(Bitmap)} calls keep the snapshot they started with and
+     * are never blocked by the update.
+     */
+    public void addSku(String sku, List<Bitmap> faces) {
+        updateFeatureIndex(sku, faces, false);
+    }
+
+    /**
+     * Replaces all faces of a SKU by the given images.
+     */
+    public void replaceSku(String sku, List<Bitmap> faces) {
+        updateFeatureIndex(sku, faces, true);
+    }
+
+    /**
+     * Removes a SKU and all its faces, returns false if it was not in the index.
+     */
+    public boolean removeSku(String sku) {
+        synchronized (mCatalogUpdateLock) {
+            FeatureCatalog.Builder builder = mFeatureIndex != null ?
+                    new FeatureCatalog.Builder(mFeatureIndex.catalog) : new FeatureCatalog.Builder();
+            if (!builder.remove(sku)) {
+                return false;
+            }
+            swapFeatureIndex(builder);
+            return true;
+        }
+    }
+
+    private void updateFeatureIndex(String sku, List<Bitmap> faces, boolean replace) {
+        FeatureDetector detector = FeatureDetector.create(FEATURE_DETECTOR);
+        DescriptorExtractor extractor = DescriptorExtractor.create(DESCRIPTOR_EXTRACTOR);
+        List<MatOfKeyPoint> kps = new ArrayList<>();
+        List<Mat> deses = new ArrayList<>();
+        Mat rgba = new Mat();
+        for (Bitmap face : faces) {
+            Utils.bitmapToMat(face, rgba);
+            Mat img = new Mat();
+            Imgproc.cvtColor(rgba, img, Imgproc.COLOR_RGBA2GRAY);
+            MatOfKeyPoint kp = new MatOfKeyPoint();
+            detector.detect(img, kp);
+            Mat des = new Mat();
+            extractor.compute(img, kp, des);
+            img.release();
+            kps.add(kp);
+            deses.add(des);
+        }
+        rgba.release();
+        synchronized (mCatalogUpdateLock) {
+            FeatureCatalog.Builder builder = mFeatureIndex != null ?
+                    new FeatureCatalog.Builder(mFeatureIndex.catalog) : new FeatureCatalog.Builder();
+            if (replace) {
+                builder.remove(sku);
+            }
+            for (int i = 0; i < kps.size(); i++) {
+                builder.add(sku, kps.get(i), deses.get(i));
+            }
+            swapFeatureIndex(builder);
+        }
+    }
+
+    /**
+     * Writes the changes of {@code builder} to the catalog file, indexes the result and only
+     * then publishes it, analyses keep using the previous snapshot meanwhile.
+     */
+    private void swapFeatureIndex(FeatureCatalog.Builder builder) {
+        final long startTime = SystemClock.uptimeMillis();
+        FeatureCatalog catalog = null;
+        if (mCatalogFile != null) {
             try {
-                InputStream is = mContext.getAssets().open(filePath);
-                int size = is.available();
-                byte[] buffer = new byte[size];
-                is.read(buffer);
-                is.close();
-                FileOutputStream fos = new FileOutputStream(cacheFile);
-                fos.write(buffer);
-                fos.close();
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+                catalog = FeatureCatalogFile.append(mCatalogFile, mCatalogVersion, builder);
+            } catch (IOException e) {
+                Log.w(TAG, "failed to persist feature catalog", e);
             }
+        }
+        if (catalog == null) {
+            catalog = builder.build();
+        }
+        final FeatureIndex index = indexCatalog(catalog, mFeatureIndex);
+        mFeatureIndex = index;
+        invalidateAnalysisCache();
+        Log.d(TAG, (SystemClock.uptimeMillis() - startTime) + " ms taken to swap " + catalog);
+    }
+
+    /**
+     * Forgets cached analyses, which are stale once the catalog or its index changed.
+     */
+    private void invalidateAnalysisCache() {
+        final FrameCache<List<String>> cache = mAnalysisCache;
+        if (cache != null) {
+            cache.invalidate();
+        }
+    }
+
+    private FeatureCatalog extractCatalog(String dirPath, String[] files) throws IOException {
+        FeatureCatalog.Builder builder = new FeatureCatalog.Builder();
+        for (String file : files) {
+            String filePath = dirPath + "/" + file;
+            Log.d(TAG, filePath);
             String name = file.split("_")[0];
-            Mat img = Imgcodecs.imread(cacheFile.getAbsolutePath(), Imgcodecs.IMREAD_GRAYSCALE);
+            Mat img = Imgcodecs.imdecode(new MatOfByte(readAsset(filePath)), Imgcodecs.IMREAD_GRAYSCALE);
 //            Imgproc.resize(img, img, new Size(), 0.8, 0.8, Imgproc.INTER_AREA);
-            Log.d(TAG, cacheFile.getAbsolutePath() + ": " + img.size().toString());
+            Log.d(TAG, filePath + ": " + img.size().toString());
             MatOfKeyPoint kp = new MatOfKeyPoint();
             mFeatureDetector.detect(img, kp);
             Log.d(TAG, "kp: " + kp.size().toString());
             Mat des = new Mat();
             mDescriptorExtractor.compute(img, kp, des);
             Log.d(TAG, "des: " + des.size().toString());
-            if (!mFeatureIndex.containsKey(name)) {
-                mFeatureIndex.put(name, new ArrayList<Map<String, Object>>());
+            builder.add(name, kp, des);
+            img.release();
+        }
+        return builder.build();
+    }
+
+    private byte[] readAsset(String filePath) throws IOException {
+        InputStream is = mContext.getAssets().open(filePath);
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.max(is.available(), 8192));
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                baos.write(buffer, 0, read);
             }
-            Map<String, Object> feature = new HashMap<>();
-            feature.put("kp", kp);
-            feature.put("des", des);
-            feature.put("img", img);
-            mFeatureIndex.get(name).add(feature);
+            return baos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Ranks catalog faces against the query descriptors and returns a mask of the faces worth a
+     * full ratio test, or null if the catalog is small enough to verify every face.
+     */
+    private boolean[] shortlist(FeatureIndex index, Mat des) {
+        if (index.ranker.getFaceCount() <= MAXIMUM_CANDIDATE_FACES) {
+            return null;
         }
+        boolean[] candidates = new boolean[index.ranker.getFaceCount()];
+        int[] ranked = index.ranker.rank(des, MAXIMUM_CANDIDATE_FACES);
+        for (int face : ranked) {
+            candidates[face] = true;
+        }
+        return candidates;
     }
 
     public List<String> analyze(Bitmap bitmap) {
+        final FrameCache<List<String>> cache = mAnalysisCache;
+        if (cache == null) {
+            return analyzeFrame(bitmap);
+        }
+        final long hash = cache.hash(bitmap);
+        List<String> results = cache.get(hash);
+        if (results == null) {
+            results = analyzeFrame(bitmap);
+            cache.put(hash, new ArrayList<>(results));
+            return results;
+        }
+        return new ArrayList<>(results);
+    }
+
+    private List<String> analyzeFrame(Bitmap bitmap) {
         List<String> results = new ArrayList<>();
         final long startTime = SystemClock.uptimeMillis();
         Mat origin = new Mat();
@@ -185,38 +462,197 @@ public class FMCGDetector {
         mFeatureDetector.detect(img, kp);
         Mat des = new Mat();
         mDescriptorExtractor.compute(img, kp, des);
-        for (Map.Entry<String, List<Map<String, Object>>> entry: mFeatureIndex.entrySet()) {
-            String name = entry.getKey();
-            List<Map<String, Object>> faces = entry.getValue();
-//            Log.d(TAG, name + ": " + faces.size());
-            boolean matched = false;
-            StringBuilder score = new StringBuilder();
-            for (Map<String, Object> face : faces) {
-                List<MatOfDMatch> matches = new ArrayList<>();
-                mBFMatcher.knnMatch((Mat)face.get("des"), des, matches, 2);
-                int good = 0;
-                for (MatOfDMatch match : matches) {
-                    List<DMatch> dMatches = match.toList();
-                    if (dMatches.size() >= 2 && dMatches.get(0).distance < 0.75 * dMatches.get(1).distance) {
-                        good++;
+        final FeatureIndex index = mFeatureIndex;
+        final FeatureCatalog catalog = index.catalog;
+        final boolean[] candidates = shortlist(index, des);
+        final int[] goods = new int[catalog.getSkuCount()];
+        // Held while matching so the executor is not swapped under a running analysis.
+        mMatchLock.readLock().lock();
+        try {
+            if (mMatchExecutor != null) {
+                matchParallel(catalog, des, candidates, goods);
+            } else if (mNativeMatching) {
+                matchBatch(catalog, des, candidates, goods);
+            } else {
+                // The shared matcher holds the results of its last match.
+                synchronized (mKnnMatcher) {
+                    int matched = 0;
+                    for (int i = 0; i < goods.length; i++) {
+                        if (mMaximumMatches > 0 && matched >= mMaximumMatches) {
+                            break;
+                        }
+                        goods[i] = match(catalog, i, des, candidates, mKnnMatcher);
+                        if (goods[i] > 0) {
+                            matched++;
+                        }
                     }
                 }
-//                Log.d(TAG, "matches: " + matches.size() + ", good: " + good);
-                if (good > 5) {
-                    matched = true;
-                    score.append(good).append(", ");
+            }
+            for (int i = 0; i < goods.length; i++) {
+                if (mMaximumMatches > 0 && results.size() >= mMaximumMatches) {
                     break;
                 }
+                if (goods[i] > 0) {
+                    results.add(catalog.getSkuName(i) + ": " + goods[i] + ", ");
+                }
             }
-            if (matched) {
-                results.add(name + ": " + score.toString());
-            }
+        } finally {
+            mMatchLock.readLock().unlock();
         }
         long spent = SystemClock.uptimeMillis() - startTime;
 //        Log.d(TAG, spent + " ms taken to analyze.");
         return results;
     }
 
+    /**
+     * Enables parallel matching of SKUs in {@link #analyze(Bitmap)} on {@code threads} workers,
+     * each with its own matcher, and optionally stops once {@code maximumMatches} SKUs have
+     * matched. Results are the same as matching sequentially whatever the number of threads.
+     * Waits for running analyses to finish their matching.
+     *
+     * @param threads number of workers, 0 or 1 to match on the caller thread
+     * @param maximumMatches number of matched SKUs to stop after, 0 for no limit
+     */
+    public void setParallelMatching(int threads, int maximumMatches) {
+        mMatchLock.writeLock().lock();
+        try {
+            if (mMatchExecutor != null) {
+                mMatchExecutor.shutdown();
+                mMatchExecutor = null;
+            }
+            mMaximumMatches = maximumMatches;
+            if (threads > 1) {
+                mMatchExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new MatchThread(r, TAG + "-match-" + mCount.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+        } finally {
+            mMatchLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Matches descriptors with the batched Hamming matcher of native-lib instead of
+     * {@link BulkKnnMatcher}, enabled by default when the library is available.
+     */
+    public void setNativeMatching(boolean nativeMatching) {
+        mNativeMatching = nativeMatching && HammingMatcher.isAvailable();
+    }
+
+    private void matchParallel(final FeatureCatalog catalog, final Mat des, final boolean[] candidates, final int[] goods) {
+        // Workers claim SKUs in ascending order and always finish a SKU they claimed. A SKU is
+        // only left unclaimed once enough SKUs before it have matched, so the first matches in
+        // SKU order, the only ones reported, are those of a sequential match.
+        final int maximumMatches = mMaximumMatches;
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger matched = new AtomicInteger();
+        List<Callable<Void>> workers = new ArrayList<>();
+        for (int w = 0; w < ((ThreadPoolExecutor) mMatchExecutor).getCorePoolSize(); w++) {
+            workers.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    // Each worker thread owns a matcher, concurrent analyses never share one.
+                    final BulkKnnMatcher matcher = ((MatchThread) Thread.currentThread()).matcher;
+                    while (maximumMatches <= 0 || matched.get() < maximumMatches) {
+                        final int i = next.getAndIncrement();
+                        if (i >= goods.length) {
+                            break;
+                        }
+                        goods[i] = match(catalog, i, des, candidates, matcher);
+                        if (goods[i] > 0) {
+                            matched.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> future : mMatchExecutor.invokeAll(workers)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Matches every candidate face of the catalog in a single native call, then keeps for each
+     * SKU the good matches of its first face with enough of them.
+     */
+    private void matchBatch(FeatureCatalog catalog, Mat des, boolean[] candidates, int[] goods) {
+        int[] faces = new int[catalog.getFaceCount()];
+        int count = 0;
+        for (int face = 0; face < faces.length; face++) {
+            if (candidates == null || candidates[face]) {
+                faces[count++] = face;
+            }
+        }
+        int[] faceGoods = HammingMatcher.countGoodMatches(des, catalog, faces, count, MATCH_RATIO);
+        int matched = 0;
+        int sku = 0;
+        for (int i = 0; i < count; i++) {
+            while (faces[i] >= catalog.getFaceStart(sku + 1)) {
+                sku++;
+            }
+            if (goods[sku] == 0 && faceGoods[i] > MINIMUM_GOOD_MATCHES) {
+                goods[sku] = faceGoods[i];
+                matched++;
+            }
+        }
+        if (mMaximumMatches > 0 && matched > mMaximumMatches) {
+            for (int i = 0, kept = 0; i < goods.length; i++) {
+                if (goods[i] > 0 && ++kept > mMaximumMatches) {
+                    goods[i] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Matches the faces of one SKU and returns the good matches of the first face with more
+     * than 5 of them, or 0 if none has.
+     */
+    private int match(FeatureCatalog catalog, int sku, Mat des, boolean[] candidates, BulkKnnMatcher matcher) {
+        if (mNativeMatching) {
+            int[] faces = new int[catalog.getFaceStart(sku + 1) - catalog.getFaceStart(sku)];
+            int count = 0;
+            for (int face = catalog.getFaceStart(sku), end = catalog.getFaceStart(sku + 1); face < end; face++) {
+                if (candidates == null || candidates[face]) {
+                    faces[count++] = face;
+                }
+            }
+            int[] goods = HammingMatcher.countGoodMatches(des, catalog, faces, count, MATCH_RATIO);
+            for (int good : goods) {
+                if (good > MINIMUM_GOOD_MATCHES) {
+                    return good;
+                }
+            }
+            return 0;
+        }
+        for (int face = catalog.getFaceStart(sku), end = catalog.getFaceStart(sku + 1); face < end; face++) {
+            if (candidates != null && !candidates[face]) {
+                continue;
+            }
+            matcher.knnMatch(catalog.getFaceDescriptors(face), des);
+            int good = matcher.countRatioMatches(MATCH_RATIO);
+//            Log.d(TAG, "matches: " + matcher.getQueryCount() + ", good: " + good);
+            if (good > MINIMUM_GOOD_MATCHES) {
+                return good;
+            }
+        }
+        return 0;
+    }
+
     public Bitmap drawRects(Bitmap bitmap, List<RectF> rects, int red, int green, int blue) {
         Mat origin = new Mat();
         Utils.bitmapToMat(bitmap, origin);
@@ -227,110 +663,101 @@ public class FMCGDetector {
         return bitmap;
     }
 
-    public List<RectF> getRois(Bitmap bitmap, BG color) {
-        long start = System.currentTimeMillis();
+    /**
+     * Draws the locations of a batch of detections, read straight from its arrays.
+     */
+    public Bitmap drawRects(Bitmap bitmap, DetectionBatch detections, int red, int green, int blue) {
         Mat origin = new Mat();
         Utils.bitmapToMat(bitmap, origin);
-//        Mat image = new Mat();
-//        Imgproc.cvtColor(origin, image, Imgproc.COLOR_BGR2HSV);
-//        Mat mask = new Mat();
-//        Pair<Scalar, Scalar> bounding = getBounding(color);
-//        Core.inRange(image, bounding.first, bounding.second, mask);
-//        Imgproc.threshold(mask, mask, THRESHOLD_THRESH, THRESHOLD_MAXVAL, THRESHOLD_TYPE);
-//        Mat kernel = Imgproc.getStructuringElement(Imgproc.CV_SHAPE_ELLIPSE, new Size(KERNEL_WIDTH, KERNEL_HEIGHT));
-//        Imgproc.dilate(mask, mask, kernel, new Point(), DILATE_ITERATIONS);
-//        List<MatOfPoint> contours = new ArrayList<>();
-//        Imgproc.findContours(mask, contours, new Mat(), Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
-//        Collections.sort(contours, new Comparator<MatOfPoint>() {
-//            @Override
-//            public int compare(MatOfPoint c1, MatOfPoint c2) {
-//                double a1 = Imgproc.contourArea(c1);
-//                double a2 = Imgproc.contourArea(c2);
-//                return a2 > a1 ? 1 : (a2 == a1 ? 0 : -1);
-//            }
-//        });
-
-        List<RectF> boxes = new ArrayList<>();
-//        for (MatOfPoint contour : contours) {
-//            Rect rect = Imgproc.boundingRect(contour);
-//            RectF dilated = new RectF(Math.max(rect.x - DILATE_SIZE, 0),
-//                    Math.max(rect.y - DILATE_SIZE, 0),
-//                    Math.min(rect.x + rect.width + DILATE_SIZE, origin.width()),
-//                    Math.min(rect.y + rect.height + DILATE_SIZE, origin.height()));
-//            boolean matched = false;
-//            for (int i = 0; i < boxes.size(); i++) {
-//                RectF box = boxes.get(i);
-//                if (box.contains(dilated)) {
-//                    matched = true;
-//                    break;
-//                }
-//                if (box.contains(dilated.centerX(), dilated.centerY())) {
-//                    box.set(Math.min(box.left, dilated.left),
-//                            Math.min(box.top, dilated.top),
-//                            Math.max(box.right, dilated.right),
-//                            Math.max(box.bottom, dilated.bottom));
-//                    boxes.set(i, box);
-//                    matched = true;
-//                    break;
-//                }
-//            }
-//            if (!matched) {
-//                boxes.add(new RectF(rect.x, rect.y, rect.x + rect.width, rect.y + rect.height));
-//            }
-//        }
-
-        if (boxes.size() == 0) {
-            boxes = Collections.singletonList(new RectF(0, 0, origin.width(), origin.height()));
+        final Scalar color = new Scalar(red, green, blue);
+        for (int i = 0; i < detections.size(); i++) {
+            Imgproc.rectangle(origin, new Point(detections.getLeft(i), detections.getTop(i)),
+                    new Point(detections.getRight(i), detections.getBottom(i)), color, 2);
+        }
+        Utils.matToBitmap(origin, bitmap);
+        origin.release();
+        return bitmap;
+    }
+
+    /**
+     * Proposes the regions of the frame showing products on a {@code color} background, large
+     * regions being cut into overlapping tiles. Returns no region if the frame only shows
+     * background.
+     */
+    public List<RectF> getRois(Bitmap bitmap, BG color) {
+        long start = System.currentTimeMillis();
+        final List<RectF> boxes;
+        synchronized (mRoiProposer) {
+            boxes = mRoiProposer.propose(bitmap, color, MINIMUM_ROI_AREA, MAXIMUM_ROI_NUM);
         }
 
         List<RectF> rois = new ArrayList<>();
         for (RectF box : boxes) {
-            if (box.width() * box.height() > MINIMUM_ROI_AREA) {
+            if (box.width() * box.height() <= MAXIMUM_ROI_AREA) {
                 rois.add(box);
-//                if (box.width() * box.height() > MAXIMUM_ROI_AREA) {
-//                    float halfWidth = (float) Math.floor(box.width() / 2d);
-//                    float halfHeight = (float) Math.floor(box.height() / 2d);
-//                    for (float left = 0; left + halfWidth <= box.width(); left += halfWidth) {
-//                        rois.add(new RectF(box.left + left, box.top, box.left + left + halfWidth, box.bottom));
-//                    }
-//                    for (float top = 0; top + halfHeight <= box.height(); top += halfHeight) {
-//                        rois.add(new RectF(box.left, box.top + top, box.right, box.top + top + halfHeight));
-//                    }
-//                    for (float left = 0; left + halfWidth <= box.width(); left += halfWidth) {
-//                        for (float top = 0; top + halfHeight <= box.height(); top += halfHeight) {
-//                            rois.add(new RectF(box.left + left, box.top + top, box.left + left + halfWidth, box.top + top + halfHeight));
-//                        }
-//                    }
-////                    float atomSize = (float) Math.min(Math.floor(origin.width() / 3d), Math.floor(origin.height() / 3d));
-////                    float atomStep = (float) Math.floor(atomSize / 2f);
-////                    for (float left = 0; left < origin.width(); left += atomStep) {
-////                        for (float top = 0; top < origin.height(); top += atomStep) {
-////                            rois.add(new RectF(left, top, Math.min(left + atomSize, origin.width()), Math.min(top + atomSize, origin.height())));
-////                        }
-////                    }
-//                }
+                continue;
+            }
+            // Too large to keep enough detail once scaled down to the input size.
+            for (RectF tile : getTiles(Math.round(box.width()), Math.round(box.height()), (int) Math.sqrt(MAXIMUM_ROI_AREA), ROI_TILE_OVERLAP)) {
+                tile.offset(box.left, box.top);
+                rois.add(tile);
             }
         }
 
         long spent = System.currentTimeMillis() - start;
         Log.d(TAG, spent + " ms taken to get rects.");
 
-        if (DEBUG) {
-            String dirName = md5(bitmap) + "_" + MINIMUM_ROI_AREA;
-            File dir = new File(mContext.getExternalFilesDir(null), dirName);
-            if (dir.exists() || dir.mkdirs()) {
-                for (RectF box : rois) {
-                    saveFile(Bitmap.createBitmap(bitmap, Math.round(box.left), Math.round(box.top), Math.round(box.width()), Math.round(box.height())),
-                            dirName, "roi_" + spent + "ms_b" + rois.size() + "_" + box.toShortString() + "_" + box.width() + "×" + box.height() + ".jpg");
-                }
-            }
+        if (mDebugCapture != null) {
+            mDebugCapture.captureRois(bitmap, rois, spent);
         }
 
-//        boxes.clear();
         return rois;
     }
 
+    /**
+     * Time taken to load the detection model, in ms, or -1 without a model.
+     */
+    public long getModelLoadTime() {
+        return mDetectors != null ? mDetectors.getLoadTime() : -1;
+    }
+
+    /**
+     * Time taken by the first inference of the model, its background warm-up, in ms, or -1 if it
+     * did not finish yet.
+     */
+    public long getModelFirstInferenceTime() {
+        return mDetectors != null ? mDetectors.getFirstInferenceTime() : -1;
+    }
+
+    /**
+     * Time taken by the last inference, of the continuous detection if running, in ms, or -1 if
+     * none ran yet.
+     */
+    public long getLastInferenceTime() {
+        final Classifier pipelineDetector = mPipelineDetector;
+        if (pipelineDetector != null) {
+            return pipelineDetector.getLastInferenceTime();
+        }
+        return mDetectors != null ? mDetectors.getLastInferenceTime() : -1;
+    }
+
     public List<Classifier.Recognition> recognize(Bitmap origin) {
+        checkNotDetecting();
+        final FrameCache<List<Classifier.Recognition>> cache = mRecognitionCache;
+        if (cache == null) {
+            return recognizeFrame(origin);
+        }
+        final long hash = cache.hash(origin);
+        List<Classifier.Recognition> results = cache.get(hash);
+        if (results == null) {
+            results = recognizeFrame(origin);
+            cache.put(hash, copy(results));
+            return results;
+        }
+        return copy(results);
+    }
+
+    private List<Classifier.Recognition> recognizeFrame(Bitmap origin) {
         final long startTime = SystemClock.uptimeMillis();
         Bitmap cropped = Bitmap.createBitmap(mInputSize, mInputSize, Bitmap.Config.ARGB_8888);
         Matrix frameToCropTransform =
@@ -342,178 +769,647 @@ public class FMCGDetector {
         frameToCropTransform.invert(cropToFrameTransform);
         Canvas canvas = new Canvas(cropped);
         canvas.drawBitmap(origin, frameToCropTransform, null);
-        final List<Classifier.Recognition> results = new ArrayList<>();
-        for (Classifier.Recognition result : mDetector.recognizeImage(cropped)) {
-            final RectF location = result.getLocation();
-            if (location != null && result.getConfidence() >= MINIMUM_CONFIDENCE) {
-                cropToFrameTransform.mapRect(location);
-                result.setLocation(location);
-                results.add(result);
-            }
+        final DetectionBatch detections = new DetectionBatch(MAXIMUM_DETECTIONS);
+        final Classifier detector = acquireDetector();
+        try {
+            detector.recognizeImage(cropped, detections);
+        } finally {
+            mDetectors.release(detector);
         }
+        cropped.recycle();
+        detections.truncate(MINIMUM_CONFIDENCE);
+        detections.transform(cropToFrameTransform);
         Log.d(TAG, (SystemClock.uptimeMillis() - startTime) + " ms taken to recognize bitmap.");
-        return results;
+        // Callers get a list of their own, the batch views stay internal.
+        return new ArrayList<>(detections.asList());
+    }
+
+    /**
+     * Throws if continuous detection is running: it holds a session of the pool until
+     * {@link #stopDetection()}, so with a single session a recognition would wait forever.
+     */
+    private void checkNotDetecting() {
+        if (mPipeline != null) {
+            throw new IllegalStateException("recognition while continuous detection runs, call stopDetection() first");
+        }
+    }
+
+    /**
+     * Borrows a session for a single recognition, checking again in case continuous detection
+     * started since the entry point was called.
+     */
+    private Classifier acquireDetector() {
+        checkNotDetecting();
+        return mDetectors.acquire();
     }
 
+    /**
+     * Groups recognitions with the same id: by descending confidence, each one is merged into
+     * the first chosen recognition containing its centre, which grows to cover both, or chosen
+     * itself otherwise. ROI markers are left out.
+     */
     public List<Classifier.Recognition> merge(List<Classifier.Recognition> candidates) {
-        List<Classifier.Recognition> chosen = new ArrayList<>();
-        Collections.sort(candidates, new Comparator<Classifier.Recognition>() {
-            @Override
-            public int compare(Classifier.Recognition r1, Classifier.Recognition r2) {
-                return r2.getConfidence() > r1.getConfidence() ? 1 : (r2.getConfidence().equals(r1.getConfidence()) ? 0 : -1);
+        synchronized (mBoxMerger) {
+            final List<Classifier.Recognition> boxes = fillBoxMerger(candidates, false);
+            final int count = mBoxMerger.merge();
+            final List<Classifier.Recognition> chosen = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                final int box = mBoxMerger.getKept(i);
+                final Classifier.Recognition recognition = boxes.get(box);
+                recognition.setLocation(new RectF(mBoxMerger.getLeft(box), mBoxMerger.getTop(box),
+                        mBoxMerger.getRight(box), mBoxMerger.getBottom(box)));
+                chosen.add(recognition);
             }
-        });
+            return chosen;
+        }
+    }
+
+    /**
+     * Standard non maximum suppression, drops every recognition overlapping a more confident one
+     * with the same title by more than {@code iouThreshold} intersection over union. ROI markers
+     * are left out.
+     */
+    public List<Classifier.Recognition> suppress(List<Classifier.Recognition> candidates, float iouThreshold) {
+        synchronized (mBoxMerger) {
+            final List<Classifier.Recognition> boxes = fillBoxMerger(candidates, true);
+            final int count = mBoxMerger.suppress(iouThreshold);
+            final List<Classifier.Recognition> chosen = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                chosen.add(boxes.get(mBoxMerger.getKept(i)));
+            }
+            return chosen;
+        }
+    }
+
+    private List<Classifier.Recognition> fillBoxMerger(List<Classifier.Recognition> candidates, boolean byTitle) {
+        final List<Classifier.Recognition> boxes = new ArrayList<>(candidates.size());
+        final Map<String, Integer> classes = new HashMap<>();
+        mBoxMerger.clear();
         for (Classifier.Recognition candidate : candidates) {
             if (candidate.getId().equals("r")) {
                 continue;
             }
-            Classifier.Recognition matched = null;
-            for (int i = 0; i < chosen.size(); i++) {
-                Classifier.Recognition object = chosen.get(i);
-                if (object.getLocation().contains(candidate.getLocation()) &&
-                        object.getId().equals(candidate.getId())) {
-                    matched = object;
-                    break;
-                }
-                if (object.getLocation().intersect(candidate.getLocation()) &&
-                        object.getLocation().contains(candidate.getLocation().centerX(), candidate.getLocation().centerY()) &&
-                        object.getId().equals(candidate.getId())) {
-                    object.setLocation(new RectF(
-                            Math.min(object.getLocation().left, candidate.getLocation().left),
-                            Math.min(object.getLocation().top, candidate.getLocation().top),
-                            Math.max(object.getLocation().right, candidate.getLocation().right),
-                            Math.max(object.getLocation().bottom, candidate.getLocation().bottom)
-                    ));
-                    matched = object;
-                    break;
-                }
-            }
-            if (matched == null) {
-                chosen.add(candidate);
+            final String key = byTitle ? candidate.getTitle() : candidate.getId();
+            Integer classId = classes.get(key);
+            if (classId == null) {
+                classId = classes.size();
+                classes.put(key, classId);
             }
+            final RectF location = candidate.getLocation(mScratchRect);
+            mBoxMerger.add(location.left, location.top, location.right, location.bottom,
+                    candidate.getConfidence(), classId);
+            boxes.add(candidate);
         }
-        return chosen;
+        return boxes;
     }
 
     public List<Classifier.Recognition> recognize(Bitmap origin, RectF roi) {
-        final long startTime = SystemClock.uptimeMillis();
-        Bitmap bitmap = Bitmap.createBitmap(origin, Math.round(roi.left), Math.round(roi.top), Math.round(roi.width()), Math.round(roi.height()));
-        Bitmap cropped = Bitmap.createBitmap(mInputSize, mInputSize, Bitmap.Config.RGB_565);
-        Matrix frameToCropTransform =
-                getTransformationMatrix(
-                        origin.getWidth(), origin.getHeight(),
-                        mInputSize, mInputSize,
-                        mSensorOrientation, false);
-        Canvas canvas = new Canvas(cropped);
-        canvas.drawBitmap(origin, frameToCropTransform, null);
-        final List<Classifier.Recognition> results = recognize(cropped);
-        long spent = SystemClock.uptimeMillis() - startTime;
-        Log.d(TAG, spent + " ms taken to analyze roi.");
-
-        if (DEBUG) {
-            String dirName = md5(origin) + "_" + MINIMUM_ROI_AREA;
-            File dir = new File(mContext.getExternalFilesDir(null), dirName);
-            if (dir.exists() || dir.mkdirs()) {
-                Mat mat = new Mat();
-                Utils.bitmapToMat(bitmap, mat);
-                for (Classifier.Recognition result : results) {
-                    RectF rect = result.getLocation();
-                    Imgproc.rectangle(mat, new Point(rect.left, rect.top), new Point(rect.right, rect.bottom), new Scalar(255, 0, 0), 2);
-                }
-                Utils.matToBitmap(mat, bitmap);
-                saveFile(bitmap, dirName, "rec_" + spent + "ms_" + roi.toShortString() + "_" + roi.width() + "×" + roi.height() + ".jpg");
-            }
-        }
-
-        for (int i = 0; i < results.size(); i++) {
-            Classifier.Recognition result = results.get(i);
-            final RectF location = result.getLocation();
-            location.offset(roi.left, roi.top);
-            result.setLocation(location);
-            results.set(i, result);
-        }
-        return results;
+        checkNotDetecting();
+        return new ArrayList<>(recognizeRois(origin, Collections.singletonList(roi)).get(0));
     }
 
     public List<Classifier.Recognition> recognize(Bitmap origin, List<RectF> rois) {
+        checkNotDetecting();
         for (RectF roi : rois) {
             Log.d(TAG, roi.toString());
         }
         final long startTime = SystemClock.uptimeMillis();
+        final List<List<Classifier.Recognition>> recognitions = recognizeRois(origin, rois);
         final List<Classifier.Recognition> results = new ArrayList<>();
-        for (RectF roi : rois) {
-            results.add(new Classifier.Recognition("r", "roi", 1f, roi));
-            results.addAll(recognize(origin, roi));
+        for (int i = 0; i < rois.size(); i++) {
+            results.add(new Classifier.Recognition("r", "roi", 1f, rois.get(i)));
+            results.addAll(recognitions.get(i));
         }
         Log.d(TAG, (SystemClock.uptimeMillis() - startTime) + " millis taken to recognize bitmap.");
         return results;
     }
 
+    /**
+     * Scales every ROI of the frame to the input size of the detector, recognizes all of them in
+     * one batched inference and maps the results back to frame coordinates.
+     */
+    private List<List<Classifier.Recognition>> recognizeRois(Bitmap origin, List<RectF> rois) {
+        final long startTime = SystemClock.uptimeMillis();
+        final List<Bitmap> crops = new ArrayList<>(rois.size());
+        final List<Matrix> cropToFrameTransforms = new ArrayList<>(rois.size());
+        for (RectF roi : rois) {
+            Bitmap cropped = Bitmap.createBitmap(mInputSize, mInputSize, Bitmap.Config.ARGB_8888);
+            Matrix frameToCropTransform =
+                    getTransformationMatrix(
+                            Math.round(roi.width()), Math.round(roi.height()),
+                            mInputSize, mInputSize,
+                            mSensorOrientation, false);
+            frameToCropTransform.preTranslate(-roi.left, -roi.top);
+            Matrix cropToFrameTransform = new Matrix();
+            frameToCropTransform.invert(cropToFrameTransform);
+            Canvas canvas = new Canvas(cropped);
+            canvas.drawBitmap(origin, frameToCropTransform, null);
+            crops.add(cropped);
+            cropToFrameTransforms.add(cropToFrameTransform);
+        }
+        final List<DetectionBatch> batches = new ArrayList<>(rois.size());
+        for (int i = 0; i < rois.size(); i++) {
+            batches.add(new DetectionBatch(MAXIMUM_DETECTIONS));
+        }
+        if (!crops.isEmpty()) {
+            final Classifier detector = acquireDetector();
+            try {
+                detector.recognizeImages(crops, batches);
+            } finally {
+                mDetectors.release(detector);
+            }
+        }
+        final List<List<Classifier.Recognition>> results = new ArrayList<>(rois.size());
+        for (int i = 0; i < batches.size(); i++) {
+            final DetectionBatch detections = batches.get(i);
+            detections.truncate(MINIMUM_CONFIDENCE);
+            detections.transform(cropToFrameTransforms.get(i));
+            results.add(detections.asList());
+            crops.get(i).recycle();
+        }
+        long spent = SystemClock.uptimeMillis() - startTime;
+        Log.d(TAG, spent + " ms taken to analyze " + rois.size() + " rois.");
+
+        if (mDebugCapture != null) {
+            mDebugCapture.captureRecognitions(origin, rois, results, spent);
+        }
+        return results;
+    }
+
     public List<Classifier.Recognition> recognize(Bitmap origin, BG color) {
-        return recognize(origin, getRois(origin, color));
+        checkNotDetecting();
+        final FrameCache<Pair<BG, List<Classifier.Recognition>>> cache = mRoiRecognitionCache;
+        if (cache == null) {
+            return recognize(origin, getRois(origin, color));
+        }
+        final long hash = cache.hash(origin);
+        final Pair<BG, List<Classifier.Recognition>> cached = cache.get(hash);
+        if (cached != null && cached.first == color) {
+            return copy(cached.second);
+        }
+        final List<Classifier.Recognition> results = recognize(origin, getRois(origin, color));
+        cache.put(hash, new Pair<>(color, copy(results)));
+        return results;
     }
 
-    public void close() {
-        if (mBitmap != null && !mBitmap.isRecycled()) {
-            mBitmap.recycle();
-        }
-    }
-
-    private Pair<Scalar, Scalar> getBounding(final BG color) {
-        switch (color) {
-            case BLACK:
-                return new Pair<>(new Scalar(0, 0, 0), new Scalar(180, 255, 220));
-            case WHITE:
-                return new Pair<>(new Scalar(0, 0, 46), new Scalar(180, 43, 255));
-            case BLUE:
-                return new Pair<>(new Scalar(100, 43, 46), new Scalar(124, 255, 255));
-            case RED:
-                return new Pair<>(new Scalar(0, 43, 46), new Scalar(10, 255, 255));
-            case GREEN:
-            default:
-                return new Pair<>(new Scalar(35, 43, 46), new Scalar(99, 255, 255));
+    /**
+     * Keeps the results of the last {@code capacity} frames, returned again without recognition
+     * by {@link #recognize(Bitmap)}, {@link #recognize(Bitmap, BG)} and {@link #analyze(Bitmap)}
+     * for near duplicate frames. The cache is disabled by default.
+     * <p>
+     * Frames are compared by a 64 bit difference hash of a 9x8 greyscale thumbnail, and a frame
+     * is a hit when its hash differs from the hash of a kept frame in at most {@code tolerance}
+     * bits. 0 only reuses frames with the same thumbnail gradients, 2 to 4 suits a fixed camera
+     * whose frames only differ by sensor noise, higher values risk returning the results of a
+     * shelf that changed. Analyses are forgotten whenever the catalog changes.
+     *
+     * @param capacity number of frames kept per method, 0 to disable the cache
+     * @param tolerance maximum number of differing hash bits, from 0 to 64
+     */
+    public void setFrameCache(int capacity, int tolerance) {
+        if (capacity <= 0) {
+            mRecognitionCache = null;
+            mRoiRecognitionCache = null;
+            mAnalysisCache = null;
+        } else {
+            mRecognitionCache = new FrameCache<>(capacity, tolerance);
+            mRoiRecognitionCache = new FrameCache<>(capacity, tolerance);
+            mAnalysisCache = new FrameCache<>(capacity, tolerance);
         }
     }
 
-    private boolean isInside(Rect a, Rect b) {
-        if (a.x >= b.x && a.x <= b.x + b.width && a.x + a.width >= b.x && a.x + a.width <= b.x + b.width && a.y >= b.y && a.y <= b.y + b.height && a.y + a.height >= b.y && a.y + a.height <= b.y + b.height) {
-            return true;
+    /**
+     * Number of lookups of the frame caches returning cached results, since they were enabled.
+     */
+    public int getFrameCacheHits() {
+        int hits = 0;
+        for (FrameCache<?> cache : frameCaches()) {
+            hits += cache.getHits();
         }
-        int aCenterX = a.x + a.width / 2;
-        int aCenterY = a.y + a.height / 2;
-        return aCenterX >= b.x && aCenterX <= b.x + b.width && aCenterY >= b.y && aCenterY <= b.y + b.height;
+        return hits;
     }
 
-    private String md5(Bitmap bitmap) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.JPEG, 80, baos);
-        byte[] bitmapBytes = baos.toByteArray();
-        try {
-            MessageDigest m = MessageDigest.getInstance("MD5");
-            m.update(bitmapBytes, 0, bitmapBytes.length);
-            return new BigInteger(1, m.digest()).toString(16);
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            return String.valueOf(SystemClock.currentThreadTimeMillis() / 1000 / 60);
+    /**
+     * Number of lookups of the frame caches which had to run recognition, since they were
+     * enabled.
+     */
+    public int getFrameCacheMisses() {
+        int misses = 0;
+        for (FrameCache<?> cache : frameCaches()) {
+            misses += cache.getMisses();
         }
+        return misses;
     }
 
-    private void saveFile(Bitmap bitmap, String dir, String file) {
-        FileOutputStream out = null;
-        try {
-            out = new FileOutputStream(new File(mContext.getExternalFilesDir(dir), file));
-            bitmap.compress(Bitmap.CompressFormat.JPEG, 80, out);
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                if (out != null) {
-                    out.close();
+    private List<FrameCache<?>> frameCaches() {
+        final List<FrameCache<?>> caches = new ArrayList<>(3);
+        for (FrameCache<?> cache : new FrameCache<?>[]{mRecognitionCache, mRoiRecognitionCache, mAnalysisCache}) {
+            if (cache != null) {
+                caches.add(cache);
+            }
+        }
+        return caches;
+    }
+
+    /**
+     * Copies recognitions, cached ones must not be moved by {@link #merge(List)} of callers.
+     */
+    private static List<Classifier.Recognition> copy(List<Classifier.Recognition> recognitions) {
+        final List<Classifier.Recognition> copies = new ArrayList<>(recognitions.size());
+        for (Classifier.Recognition recognition : recognitions) {
+            copies.add(new Classifier.Recognition(recognition.getId(), recognition.getTitle(),
+                    recognition.getConfidence(), recognition.getLocation()));
+        }
+        return copies;
+    }
+
+    /**
+     * Recognizes a high resolution frame tile by tile instead of scaling it down as a whole, so
+     * small products keep enough pixels. Tiles of {@code tileSize} frame pixels overlapping by
+     * {@code overlap} of their size are recognized in batches, tiles looking empty are skipped,
+     * and detections duplicated across tile seams are suppressed.
+     *
+     * @param tileSize side of the square tiles in frame pixels
+     * @param overlap fraction of a tile shared with its neighbours, in [0, 1)
+     */
+    public List<Classifier.Recognition> recognizeTiled(Bitmap origin, int tileSize, float overlap) {
+        return recognizeTiled(origin, tileSize, overlap, TILE_MINIMUM_CONTRAST);
+    }
+
+    /**
+     * Same as {@link #recognizeTiled(Bitmap, int, float)}, skipping tiles whose grey level
+     * standard deviation is below {@code minimumContrast}, or none if it is not positive.
+     */
+    public List<Classifier.Recognition> recognizeTiled(Bitmap origin, int tileSize, float overlap, double minimumContrast) {
+        if (tileSize <= 0 || overlap < 0 || overlap >= 1) {
+            throw new IllegalArgumentException("invalid tiling: " + tileSize + ", " + overlap);
+        }
+        checkNotDetecting();
+        final long startTime = SystemClock.uptimeMillis();
+        final List<RectF> tiles = getTiles(origin.getWidth(), origin.getHeight(), tileSize, overlap);
+        final int tileCount = tiles.size();
+        if (minimumContrast > 0) {
+            removeFlatTiles(origin, tiles, minimumContrast);
+        }
+        final List<Classifier.Recognition> candidates = new ArrayList<>();
+        for (List<Classifier.Recognition> results : recognizeRois(origin, tiles)) {
+            candidates.addAll(results);
+        }
+        final List<Classifier.Recognition> results = suppress(candidates, TILE_IOU_THRESHOLD);
+        Log.d(TAG, (SystemClock.uptimeMillis() - startTime) + " ms taken to recognize " + tiles.size() + "/" + tileCount + " tiles.");
+        return results;
+    }
+
+    /**
+     * Covers the frame with square tiles, the last tile of a row or column being aligned with
+     * the frame edge so no tile crosses it.
+     */
+    private List<RectF> getTiles(int width, int height, int tileSize, float overlap) {
+        final int step = Math.max(1, Math.round(tileSize * (1 - overlap)));
+        final List<RectF> tiles = new ArrayList<>();
+        for (int top : getTileOffsets(height, tileSize, step)) {
+            for (int left : getTileOffsets(width, tileSize, step)) {
+                tiles.add(new RectF(left, top, Math.min(left + tileSize, width), Math.min(top + tileSize, height)));
+            }
+        }
+        return tiles;
+    }
+
+    private List<Integer> getTileOffsets(int length, int tileSize, int step) {
+        final List<Integer> offsets = new ArrayList<>();
+        int offset = 0;
+        for (; offset + tileSize < length; offset += step) {
+            offsets.add(offset);
+        }
+        offsets.add(Math.max(0, length - tileSize));
+        return offsets;
+    }
+
+    /**
+     * Removes the tiles with a grey level standard deviation below {@code minimumContrast}, such
+     * as bare shelf or wall, measured on a downscaled copy of the frame.
+     */
+    private void removeFlatTiles(Bitmap origin, List<RectF> tiles, double minimumContrast) {
+        final Mat rgba = new Mat();
+        Utils.bitmapToMat(origin, rgba);
+        final Mat gray = new Mat();
+        Imgproc.cvtColor(rgba, gray, Imgproc.COLOR_RGBA2GRAY);
+        rgba.release();
+        final Mat small = new Mat();
+        Imgproc.resize(gray, small, new Size(), TILE_CHECK_SCALE, TILE_CHECK_SCALE, Imgproc.INTER_AREA);
+        gray.release();
+        final MatOfDouble mean = new MatOfDouble();
+        final MatOfDouble stddev = new MatOfDouble();
+        for (int i = tiles.size() - 1; i >= 0; i--) {
+            final RectF tile = tiles.get(i);
+            final int left = Math.min((int) (tile.left * TILE_CHECK_SCALE), small.cols() - 1);
+            final int top = Math.min((int) (tile.top * TILE_CHECK_SCALE), small.rows() - 1);
+            final int right = Math.max(Math.min((int) Math.ceil(tile.right * TILE_CHECK_SCALE), small.cols()), left + 1);
+            final int bottom = Math.max(Math.min((int) Math.ceil(tile.bottom * TILE_CHECK_SCALE), small.rows()), top + 1);
+            final Mat region = small.submat(top, bottom, left, right);
+            Core.meanStdDev(region, mean, stddev);
+            region.release();
+            if (stddev.toArray()[0] < minimumContrast) {
+                tiles.remove(i);
+            }
+        }
+        mean.release();
+        stddev.release();
+        small.release();
+    }
+
+    /**
+     * Returns the products of every frame at camera rate: the frame is recognized once every
+     * {@link #setTrackInterval(int) interval} frames, or as soon as a product can no longer be
+     * followed, and the merged recognitions are tracked with optical flow in between.
+     */
+    public List<Classifier.Recognition> track(Bitmap frame) {
+        checkNotDetecting();
+        synchronized (mTracker) {
+            final long startTime = SystemClock.uptimeMillis();
+            mTracker.setFrame(frame);
+            boolean detect = mTrackedFrames % mTrackInterval == 0;
+            if (!detect && !mTracker.update()) {
+                detect = true;
+            }
+            if (detect) {
+                mTracker.reset(merge(recognize(frame)));
+                mTrackedFrames = 0;
+            }
+            mTrackedFrames++;
+            Log.d(TAG, (SystemClock.uptimeMillis() - startTime) + " ms taken to " + (detect ? "detect." : "track."));
+            return mTracker.getRecognitions();
+        }
+    }
+
+    /**
+     * Sets how many frames {@link #track(Bitmap)} follows recognitions for before recognizing
+     * again, 1 recognizes every frame.
+     */
+    public void setTrackInterval(int interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval should be positive: " + interval);
+        }
+        synchronized (mTracker) {
+            mTrackInterval = interval;
+            mTrackedFrames = 0;
+        }
+    }
+
+    /**
+     * Returns the products of a frame of a mostly static scene, recognizing only the regions
+     * which changed since the previous frames. When less than the
+     * {@link #setMotionThreshold(float) motion threshold} of the frame changed, the previous
+     * results are returned without any inference. The first frame is recognized as a whole.
+     */
+    public List<Classifier.Recognition> recognizeChanges(Bitmap frame) {
+        checkNotDetecting();
+        synchronized (mMotionGate) {
+            final long startTime = SystemClock.uptimeMillis();
+            final List<RectF> regions = mMotionGate.apply(frame, mMotionThreshold, MOTION_MARGIN);
+            if (mMotionResults == null) {
+                mMotionResults = merge(recognize(frame));
+            } else if (!regions.isEmpty()) {
+                // Results in the changed regions are replaced by the new ones.
+                final List<Classifier.Recognition> results = new ArrayList<>();
+                for (Classifier.Recognition result : mMotionResults) {
+                    final RectF location = result.getLocation();
+                    boolean changed = false;
+                    for (RectF region : regions) {
+                        if (region.contains(location.centerX(), location.centerY())) {
+                            changed = true;
+                            break;
+                        }
+                    }
+                    if (!changed) {
+                        results.add(result);
+                    }
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+                for (List<Classifier.Recognition> regionResults : recognizeRois(frame, regions)) {
+                    results.addAll(regionResults);
+                }
+                mMotionResults = merge(results);
+            }
+            Log.d(TAG, (SystemClock.uptimeMillis() - startTime) + " ms taken to recognize " + regions.size() + " changed regions, "
+                    + mMotionGate.getChangedRatio() + " of the frame changed.");
+            return copy(mMotionResults);
+        }
+    }
+
+    /**
+     * Sets the fraction of a frame which must change for {@link #recognizeChanges(Bitmap)} to
+     * recognize it again.
+     */
+    public void setMotionThreshold(float changedRatio) {
+        synchronized (mMotionGate) {
+            mMotionThreshold = changedRatio;
+        }
+    }
+
+    /**
+     * Starts continuous detection: frames given to {@link #detect(Bitmap)} or
+     * {@link #detect(ByteBuffer, int, int, int)} go through a pipeline overlapping their
+     * preprocessing, inference and merging, and the merged results of every frame are delivered
+     * to {@link DetectCallback#onResult(List)} on the pipeline thread. Other recognitions throw
+     * {@link IllegalStateException} until {@link #stopDetection()}. Only the latest frame waits for inference, a new
+     * frame replaces it, so results never lag by more than one inference.
+     */
+    public void startDetection() {
+        startDetection(0);
+    }
+
+    /**
+     * Same as {@link #startDetection()}, but up to {@code queueSize} frames wait for inference in
+     * order, new frames being dropped once they are queued, for recordings where frames should
+     * not be skipped. A {@code queueSize} of 0 only keeps the latest frame.
+     */
+    public synchronized void startDetection(int queueSize) {
+        if (mDetectCallback == null) {
+            throw new IllegalStateException("continuous detection needs a DetectCallback");
+        }
+        if (mPipeline != null) {
+            return;
+        }
+        // The inference stage keeps its session until the pipeline stops.
+        mPipelineDetector = mDetectors.acquire();
+        mPipeline = new DetectionPipeline(mPipelineDetector, mInputSize, MAXIMUM_DETECTIONS, queueSize, new DetectionPipeline.Callback() {
+            @Override
+            public void onDetections(long frame, DetectionBatch detections, Matrix inputToFrame) {
+                deliver(detections, inputToFrame);
+            }
+        });
+        mPipeline.start();
+    }
+
+    /**
+     * Queues a frame for continuous detection, returns false if it was dropped because the
+     * pipeline is busy or not started. The frame can be reused once this returns. Never waits
+     * for an inference, the detector lock is not taken.
+     */
+    public boolean detect(Bitmap frame) {
+        final DetectionPipeline pipeline = mPipeline;
+        if (pipeline == null) {
+            return false;
+        }
+        FrameTransform frameToInput = mFrameToInput;
+        if (frameToInput == null || frameToInput.width != frame.getWidth() || frameToInput.height != frame.getHeight()) {
+            frameToInput = new FrameTransform(frame.getWidth(), frame.getHeight(),
+                    getTransformationMatrix(frame.getWidth(), frame.getHeight(), mInputSize, mInputSize, mSensorOrientation, false));
+            mFrameToInput = frameToInput;
+        }
+        return pipeline.submit(frame, frameToInput.matrix);
+    }
+
+    /**
+     * Queues a NV21, YUY2 or RGBA_8888 camera frame for continuous detection, returns false if it
+     * was dropped because the pipeline is busy or not started. The frame can be reused once this
+     * returns. Never waits for an inference, the detector lock is not taken.
+     */
+    public boolean detect(ByteBuffer frame, int width, int height, int format) {
+        final DetectionPipeline pipeline = mPipeline;
+        return pipeline != null && pipeline.submit(frame, width, height, format);
+    }
+
+    /**
+     * Frames of the running continuous detection replaced by a newer frame before inference.
+     */
+    public long getCoalescedFrames() {
+        final DetectionPipeline pipeline = mPipeline;
+        return pipeline != null ? pipeline.getCoalescedFrames() : 0;
+    }
+
+    /**
+     * Frames of the running continuous detection dropped on arrival.
+     */
+    public long getDroppedFrames() {
+        final DetectionPipeline pipeline = mPipeline;
+        return pipeline != null ? pipeline.getDroppedFrames() : 0;
+    }
+
+    /**
+     * Frames of the running continuous detection which went through inference.
+     */
+    public long getProcessedFrames() {
+        final DetectionPipeline pipeline = mPipeline;
+        return pipeline != null ? pipeline.getProcessedFrames() : 0;
+    }
+
+    /**
+     * Starts continuous detection of a camera stream whose {@code width * height} frames are given
+     * to {@link #onFrame(ByteBuffer)}, such as the frames of a UVC camera:
+     * <pre>
+     * detector.startStreaming(width, height, ImageFormat.NV21);
+     * camera.setFrameCallback(new IFrameCallback() {
+     *     public void onFrame(ByteBuffer frame) {
+     *         detector.onFrame(frame);
+     *     }
+     * }, UVCCamera.PIXEL_FORMAT_NV21);
+     * </pre>
+     * {@code UVCCamera.PIXEL_FORMAT_RGBX} frames are streamed as {@link PixelFormat#RGBA_8888}.
+     *
+     * @param format {@link ImageFormat#NV21}, {@link ImageFormat#YUY2} or
+     *               {@link PixelFormat#RGBA_8888}
+     */
+    public synchronized void startStreaming(int width, int height, int format) {
+        if (!FrameConverter.isSupported(format)) {
+            throw new IllegalArgumentException("unsupported frame format " + format);
+        }
+        mStreamWidth = width;
+        mStreamHeight = height;
+        mStreamFormat = format;
+        startDetection();
+        mStreaming = true;
+    }
+
+    /**
+     * Hands a frame of the stream to {@link DetectCallback#onFrame(ByteBuffer)}, then converts it
+     * into the model input of a free pipeline slot, or drops it if the pipeline is busy. Only the
+     * conversion runs on the calling camera thread, recognition runs on the pipeline threads, and
+     * the frame is not used once this returns.
+     */
+    public void onFrame(ByteBuffer frame) {
+        if (!mStreaming) {
+            return;
+        }
+        mDetectCallback.onFrame(frame);
+        if (!detect(frame, mStreamWidth, mStreamHeight, mStreamFormat)) {
+            mStreamDropped.incrementAndGet();
+        }
+    }
+
+    public synchronized void stopStreaming() {
+        if (mStreaming) {
+            mStreaming = false;
+            Log.d(TAG, mStreamDropped.getAndSet(0) + " streamed frames dropped");
+            stopDetection();
+        }
+    }
+
+    public synchronized void stopDetection() {
+        mStreaming = false;
+        final DetectionPipeline pipeline = mPipeline;
+        if (pipeline != null) {
+            // Producers see no pipeline from now on, those already in submit are refused by it.
+            mPipeline = null;
+            pipeline.stop();
+            mDetectors.release(mPipelineDetector);
+            mPipelineDetector = null;
+        }
+    }
+
+    private void deliver(DetectionBatch detections, Matrix inputToFrame) {
+        detections.truncate(MINIMUM_CONFIDENCE);
+        detections.transform(inputToFrame);
+        final List<Pair<String, Double>> results;
+        synchronized (mBoxMerger) {
+            // Same merging as merge(), overlapping boxes of the same class, without making
+            // recognitions. Output indexes are unique per frame, so they cannot group anything.
+            mBoxMerger.clear();
+            for (int i = 0; i < detections.size(); i++) {
+                mBoxMerger.add(detections.getLeft(i), detections.getTop(i),
+                        detections.getRight(i), detections.getBottom(i),
+                        detections.getScore(i), detections.getClassId(i));
             }
+            final int count = mBoxMerger.merge();
+            results = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                final int box = mBoxMerger.getKept(i);
+                results.add(new Pair<>(detections.getLabel(box), (double) detections.getScore(box)));
+            }
+        }
+        mDetectCallback.onResult(results);
+    }
+
+    public void close() {
+        stopStreaming();
+        stopDetection();
+        synchronized (mRoiProposer) {
+            mRoiProposer.release();
+        }
+        synchronized (mTracker) {
+            mTracker.release();
+        }
+        synchronized (mMotionGate) {
+            mMotionGate.release();
+        }
+        if (mDetectors != null) {
+            mDetectors.recycle();
+            mDetectors = null;
+        }
+        if (mDebugCapture != null) {
+            mDebugCapture.close();
+            mDebugCapture = null;
+        }
+        setParallelMatching(0, mMaximumMatches);
+    }
+
+    private boolean isInside(Rect a, Rect b) {
+        if (a.x >= b.x && a.x <= b.x + b.width && a.x + a.width >= b.x && a.x + a.width <= b.x + b.width && a.y >= b.y && a.y <= b.y + b.height && a.y + a.height >= b.y && a.y + a.height <= b.y + b.height) {
+            return true;
         }
+        int aCenterX = a.x + a.width / 2;
+        int aCenterY = a.y + a.height / 2;
+        return aCenterX >= b.x && aCenterX <= b.x + b.width && aCenterY >= b.y && aCenterY <= b.y + b.height;
     }
 
     private int getScreenOrientation(Context context) {
@@ -561,6 +1457,46 @@ public class FMCGDetector {
         return matrix;
     }
 
+    /**
+     * Transform of frames of one size into the model input.
+     */
+    private static final class FrameTransform {
+        final int width;
+        final int height;
+        final Matrix matrix;
+
+        FrameTransform(int width, int height, Matrix matrix) {
+            this.width = width;
+            this.height = height;
+            this.matrix = matrix;
+        }
+    }
+
+    /**
+     * Worker of the parallel matching, with the matcher only it uses.
+     */
+    private static final class MatchThread extends Thread {
+        final BulkKnnMatcher matcher = new BulkKnnMatcher(Core.NORM_HAMMING, 2);
+
+        MatchThread(Runnable target, String name) {
+            super(target, name);
+        }
+    }
+
+    /**
+     * Snapshot of the catalog and the candidate index built over it, replaced as a whole on
+     * updates.
+     */
+    private static final class FeatureIndex {
+        final FeatureCatalog catalog;
+        final FaceRanker ranker;
+
+        FeatureIndex(FeatureCatalog catalog, FaceRanker ranker) {
+            this.catalog = catalog;
+            this.ranker = ranker;
+        }
+    }
+
     private static boolean isInit;
 
     static {
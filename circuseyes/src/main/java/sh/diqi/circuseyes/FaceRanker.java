@@ -0,0 +1,18 @@
+package sh.diqi.circuseyes;
+
+import org.opencv.core.Mat;
+
+/**
+ * Ranks the faces of a {@link FeatureCatalog} by how likely they are to appear in a query image,
+ * so only the best ones need a full descriptor match.
+ */
+interface FaceRanker {
+
+    int getFaceCount();
+
+    /**
+     * Returns the ids of at most {@code limit} candidate faces for the query descriptors, best
+     * first.
+     */
+    int[] rank(Mat query, int limit);
+}
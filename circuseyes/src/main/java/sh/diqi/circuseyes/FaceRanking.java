@@ -0,0 +1,39 @@
+package sh.diqi.circuseyes;
+
+import java.util.Arrays;
+
+/**
+ * Selection of the best scored faces, shared by the {@link FaceRanker} implementations.
+ */
+final class FaceRanking {
+
+    private FaceRanking() {
+    }
+
+    /**
+     * Returns the ids of at most {@code limit} faces scoring at least {@code minimum}, ordered by
+     * descending score and then by ascending id.
+     */
+    public static int[] top(float[] scores, int limit, float minimum) {
+        int count = 0;
+        int[] ranked = new int[Math.max(Math.min(limit, scores.length), 0)];
+        if (ranked.length == 0) {
+            return ranked;
+        }
+        for (int face = 0; face < scores.length; face++) {
+            if (scores[face] < minimum) {
+                continue;
+            }
+            if (count == ranked.length && scores[ranked[count - 1]] >= scores[face]) {
+                continue;
+            }
+            int pos = count < ranked.length ? count++ : count - 1;
+            while (pos > 0 && scores[ranked[pos - 1]] < scores[face]) {
+                ranked[pos] = ranked[pos - 1];
+                pos--;
+            }
+            ranked[pos] = face;
+        }
+        return Arrays.copyOf(ranked, count);
+    }
+}
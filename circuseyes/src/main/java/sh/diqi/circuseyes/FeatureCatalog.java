@@ -0,0 +1,392 @@
+package sh.diqi.circuseyes;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Immutable catalog of the features extracted from candidate images.
+ * <p>
+ * SKUs are identified by their index in {@link #getSkuName(int)}, the faces of SKU {@code s} are
+ * {@code getFaceStart(s)} to {@code getFaceStart(s + 1) - 1}. The descriptors of all faces are
+ * stored as the rows of a single mat, face {@code f} owning rows {@code getDescriptorStart(f)}
+ * to {@code getDescriptorEnd(f) - 1}, and keypoint coordinates in flat float arrays. The mat is
+ * a header over a buffer of the same bytes, so indexes read the descriptors in place.
+ * <p>
+ * Catalogs updated in place by {@link FeatureCatalogFile#append} keep the rows of the catalog
+ * they were derived from, with the same {@link #getGeneration()}, and add rows after them. Rows
+ * of removed faces stay behind without an owner until the file is compacted.
+ */
+class FeatureCatalog {
+
+    private static final int KEYPOINT_FLOATS = 7;
+
+    private final String[] mSkuNames;
+    private final int[] mFaceStarts;
+    private final int[] mDescriptorStarts;
+    private final int[] mDescriptorEnds;
+    private final int mDescriptorCount;
+    private final int mDescriptorBytes;
+    private final int[] mKeypointStarts;
+    private final float[] mKeypointX;
+    private final float[] mKeypointY;
+    private final Mat mDescriptors;
+    private final Mat[] mFaceDescriptors;
+    // Rows of mDescriptors, also keeps the memory they may be mapped from reachable.
+    private final ByteBuffer mDescriptorData;
+    private final long mGeneration;
+
+    FeatureCatalog(String[] skuNames, int[] faceStarts, int[] descriptorStarts, int[] descriptorEnds,
+                   int[] keypointStarts, float[] keypointX, float[] keypointY, int descriptorBytes,
+                   Mat descriptors, ByteBuffer descriptorData, long generation) {
+        mSkuNames = skuNames;
+        mFaceStarts = faceStarts;
+        mDescriptorStarts = descriptorStarts;
+        mDescriptorEnds = descriptorEnds;
+        mKeypointStarts = keypointStarts;
+        mKeypointX = keypointX;
+        mKeypointY = keypointY;
+        mDescriptorBytes = descriptorBytes;
+        mDescriptors = descriptors;
+        mDescriptorData = descriptorData;
+        mGeneration = generation;
+        mFaceDescriptors = new Mat[getFaceCount()];
+        int count = 0;
+        for (int face = 0; face < mFaceDescriptors.length; face++) {
+            mFaceDescriptors[face] = descriptorStarts[face] == descriptorEnds[face] ? new Mat() :
+                    descriptors.rowRange(descriptorStarts[face], descriptorEnds[face]);
+            count += descriptorEnds[face] - descriptorStarts[face];
+        }
+        mDescriptorCount = count;
+    }
+
+    public int getSkuCount() {
+        return mSkuNames.length;
+    }
+
+    public String getSkuName(int sku) {
+        return mSkuNames[sku];
+    }
+
+    public int getSku(String name) {
+        for (int sku = 0; sku < mSkuNames.length; sku++) {
+            if (mSkuNames[sku].equals(name)) {
+                return sku;
+            }
+        }
+        return -1;
+    }
+
+    public int getFaceStart(int sku) {
+        return mFaceStarts[sku];
+    }
+
+    public int getFaceCount() {
+        return mFaceStarts[mFaceStarts.length - 1];
+    }
+
+    public int getDescriptorStart(int face) {
+        return mDescriptorStarts[face];
+    }
+
+    public int getDescriptorEnd(int face) {
+        return mDescriptorEnds[face];
+    }
+
+    /**
+     * Number of descriptors owned by a face.
+     */
+    public int getDescriptorCount() {
+        return mDescriptorCount;
+    }
+
+    /**
+     * Number of rows of {@link #getDescriptors()}, including the rows no face owns any more.
+     */
+    public int getRowCount() {
+        return mDescriptors.empty() ? 0 : mDescriptors.rows();
+    }
+
+    public int getDescriptorBytes() {
+        return mDescriptorBytes;
+    }
+
+    /**
+     * Identifies the rows of the catalog, catalogs with the same generation agree on the rows
+     * both have.
+     */
+    public long getGeneration() {
+        return mGeneration;
+    }
+
+    public int getKeypointStart(int face) {
+        return mKeypointStarts[face];
+    }
+
+    public int getKeypointCount() {
+        return mKeypointStarts[mKeypointStarts.length - 1];
+    }
+
+    public float getKeypointX(int keypoint) {
+        return mKeypointX[keypoint];
+    }
+
+    public float getKeypointY(int keypoint) {
+        return mKeypointY[keypoint];
+    }
+
+    /**
+     * All descriptors of the catalog, one row per descriptor.
+     */
+    public Mat getDescriptors() {
+        return mDescriptors;
+    }
+
+    /**
+     * The bytes of {@link #getDescriptors()}, row after row, as a read-only little endian view
+     * which packs into the same longs as {@link BinaryDescriptors#pack(Mat)}.
+     */
+    public ByteBuffer getDescriptorData() {
+        return mDescriptorData.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Descriptors of one face, a header over rows of {@link #getDescriptors()}.
+     */
+    public Mat getFaceDescriptors(int face) {
+        return mFaceDescriptors[face];
+    }
+
+    int[] getFaceStarts() {
+        return mFaceStarts;
+    }
+
+    int[] getDescriptorStarts() {
+        return mDescriptorStarts;
+    }
+
+    int[] getDescriptorEnds() {
+        return mDescriptorEnds;
+    }
+
+    int[] getKeypointStarts() {
+        return mKeypointStarts;
+    }
+
+    float[] getKeypointX() {
+        return mKeypointX;
+    }
+
+    float[] getKeypointY() {
+        return mKeypointY;
+    }
+
+    /**
+     * Collects extracted faces and packs them into a catalog, faces of the same SKU are grouped
+     * in the order their SKU was first added.
+     */
+    public static class Builder {
+        private final Map<String, List<Face>> mSkus = new LinkedHashMap<>();
+        private final FeatureCatalog mBase;
+        private int mBytes;
+
+        public Builder() {
+            mBase = null;
+        }
+
+        /**
+         * Starts from the faces of an existing catalog, their features are reused as they are.
+         */
+        public Builder(FeatureCatalog base) {
+            mBase = base;
+            mBytes = base.getDescriptorBytes();
+            for (int sku = 0; sku < base.getSkuCount(); sku++) {
+                List<Face> faces = new ArrayList<>();
+                for (int face = base.getFaceStart(sku); face < base.getFaceStart(sku + 1); face++) {
+                    int start = base.getKeypointStart(face);
+                    int end = base.getKeypointStart(face + 1);
+                    faces.add(new Face(Arrays.copyOfRange(base.mKeypointX, start, end),
+                            Arrays.copyOfRange(base.mKeypointY, start, end),
+                            base.getFaceDescriptors(face), base.getDescriptorStart(face), base.getDescriptorEnd(face)));
+                }
+                mSkus.put(base.getSkuName(sku), faces);
+            }
+        }
+
+        /**
+         * The catalog this builder started from, or null.
+         */
+        public FeatureCatalog getBase() {
+            return mBase;
+        }
+
+        public boolean contains(String sku) {
+            return mSkus.containsKey(sku);
+        }
+
+        /**
+         * Removes every face of a SKU, returns false if there was none.
+         */
+        public boolean remove(String sku) {
+            return mSkus.remove(sku) != null;
+        }
+
+        public Builder add(String sku, MatOfKeyPoint kp, Mat des) {
+            if (!mSkus.containsKey(sku)) {
+                mSkus.put(sku, new ArrayList<Face>());
+            }
+            float[] x;
+            float[] y;
+            if (kp.empty()) {
+                x = new float[0];
+                y = new float[0];
+            } else {
+                float[] data = new float[kp.rows() * KEYPOINT_FLOATS];
+                kp.get(0, 0, data);
+                x = new float[kp.rows()];
+                y = new float[kp.rows()];
+                for (int i = 0; i < x.length; i++) {
+                    x[i] = data[i * KEYPOINT_FLOATS];
+                    y[i] = data[i * KEYPOINT_FLOATS + 1];
+                }
+            }
+            if (!des.empty()) {
+                mBytes = des.cols();
+            }
+            mSkus.get(sku).add(new Face(x, y, des, -1, -1));
+            return this;
+        }
+
+        /**
+         * Descriptors of the faces added since the builder was created, in the order
+         * {@link #build(ByteBuffer, int)} expects their rows.
+         */
+        List<Mat> getAddedDescriptors() {
+            List<Mat> added = new ArrayList<>();
+            for (List<Face> faces : mSkus.values()) {
+                for (Face f : faces) {
+                    if (f.start < 0 && !f.des.empty()) {
+                        added.add(f.des);
+                    }
+                }
+            }
+            return added;
+        }
+
+        /**
+         * Number of descriptors the catalog will hold.
+         */
+        int getDescriptorCount() {
+            int count = 0;
+            for (List<Face> faces : mSkus.values()) {
+                for (Face f : faces) {
+                    count += f.des.empty() ? 0 : f.des.rows();
+                }
+            }
+            return count;
+        }
+
+        public FeatureCatalog build() {
+            // Descriptors are copied into a direct buffer the mat is a header over.
+            ByteBuffer data = ByteBuffer.allocateDirect(getDescriptorCount() * mBytes);
+            for (List<Face> faces : mSkus.values()) {
+                for (Face f : faces) {
+                    if (!f.des.empty()) {
+                        byte[] rows = new byte[f.des.rows() * mBytes];
+                        f.des.get(0, 0, rows);
+                        data.put(rows);
+                    }
+                }
+            }
+            data.clear();
+            return assemble(data, 0, false, new Random().nextLong());
+        }
+
+        /**
+         * Builds the catalog over {@code data}, which holds the rows of the base catalog followed
+         * from row {@code firstRow} by the rows of {@link #getAddedDescriptors()}. Faces of the
+         * base keep their rows, the generation of the base is kept.
+         */
+        FeatureCatalog build(ByteBuffer data, int firstRow) {
+            return assemble(data, firstRow, true, mBase.getGeneration());
+        }
+
+        private FeatureCatalog assemble(ByteBuffer data, int firstRow, boolean keepRows, long generation) {
+            String[] names = mSkus.keySet().toArray(new String[mSkus.size()]);
+            int faceCount = 0;
+            for (List<Face> faces : mSkus.values()) {
+                faceCount += faces.size();
+            }
+            int[] faceStarts = new int[names.length + 1];
+            int[] descriptorStarts = new int[faceCount];
+            int[] descriptorEnds = new int[faceCount];
+            int[] keypointStarts = new int[faceCount + 1];
+            int row = firstRow;
+            int face = 0;
+            for (int sku = 0; sku < names.length; sku++) {
+                faceStarts[sku] = face;
+                for (Face f : mSkus.get(names[sku])) {
+                    if (keepRows && f.start >= 0) {
+                        descriptorStarts[face] = f.start;
+                        descriptorEnds[face] = f.end;
+                    } else {
+                        descriptorStarts[face] = row;
+                        row += f.des.empty() ? 0 : f.des.rows();
+                        descriptorEnds[face] = row;
+                    }
+                    keypointStarts[face + 1] = keypointStarts[face] + f.x.length;
+                    face++;
+                }
+            }
+            faceStarts[names.length] = face;
+            float[] keypointX = new float[keypointStarts[faceCount]];
+            float[] keypointY = new float[keypointStarts[faceCount]];
+            face = 0;
+            for (List<Face> faces : mSkus.values()) {
+                for (Face f : faces) {
+                    System.arraycopy(f.x, 0, keypointX, keypointStarts[face], f.x.length);
+                    System.arraycopy(f.y, 0, keypointY, keypointStarts[face], f.y.length);
+                    face++;
+                }
+            }
+            int rows = mBytes == 0 ? 0 : data.capacity() / mBytes;
+            Mat descriptors = FeatureCatalogFile.wrap(data, 0, rows, mBytes, CvType.CV_8UC1);
+            return new FeatureCatalog(names, faceStarts, descriptorStarts, descriptorEnds, keypointStarts,
+                    keypointX, keypointY, mBytes, descriptors, data, generation);
+        }
+    }
+
+    private static class Face {
+        final float[] x;
+        final float[] y;
+        final Mat des;
+        // Rows of the face in the base catalog, -1 for added faces.
+        final int start;
+        final int end;
+
+        Face(float[] x, float[] y, Mat des, int start, int end) {
+            this.x = x;
+            this.y = y;
+            this.des = des;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FeatureCatalog{skus=" + getSkuCount() + ", faces=" + getFaceCount() +
+                ", descriptors=" + getDescriptorCount() + "x" + getDescriptorBytes() +
+                ", rows=" + getRowCount() +
+                ", keypoints=" + getKeypointCount() + "}";
+    }
+}
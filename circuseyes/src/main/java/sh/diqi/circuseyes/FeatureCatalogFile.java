@@ -0,0 +1,340 @@
+package sh.diqi.circuseyes;
+
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent, memory-mapped store of the keypoints and descriptors extracted from a candidates
+ * directory, so they are extracted once instead of on every start.
+ * <p>
+ * The descriptor rows and the index describing them are stored in two files, in native byte
+ * order:
+ * <pre>
+ * rows file:   magic, format version, asset version, generation, descriptor bytes, then from
+ *              {@code DATA_OFFSET} the descriptor rows packed contiguously
+ * index file:  magic, format version, asset version, generation, descriptor bytes, row count,
+ *              sku count, face count, keypoint count
+ *              sku table:  name length, UTF-8 name, first face
+ *              face table: first and end descriptor row of every face, first keypoint of every face
+ *              keypoints:  x coordinates then y coordinates
+ * </pre>
+ * Rows are only ever appended, an update writes the rows of the added faces after the rows of
+ * the current index and then replaces the small index file, so a mapping of the rows taken for
+ * an older index stays valid. The rows are wrapped as a {@link Mat} header over the read-only
+ * mapping without copying, so they must never be written to.
+ */
+class FeatureCatalogFile {
+
+    private static final String TAG = FeatureCatalogFile.class.getSimpleName();
+
+    private static final int MAGIC = 0x43454643; // "CEFC"
+    private static final int FORMAT_VERSION = 3;
+    private static final int DATA_OFFSET = 64;
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private FeatureCatalogFile() {
+    }
+
+    /**
+     * Computes a version of the asset set from the names and contents of the files and from the
+     * extractor they are described with, any added, removed or replaced image, or any change of
+     * the extractor or its parameters, changes it.
+     *
+     * @param extractor description of the feature detector and descriptor extractor and their
+     *                  parameters
+     */
+    public static long version(AssetManager assetManager, String dirPath, String[] files, String extractor) throws IOException {
+        String[] sorted = Arrays.copyOf(files, files.length);
+        Arrays.sort(sorted);
+        long hash = 0xcbf29ce484222325L;
+        hash = fnv(hash, FORMAT_VERSION);
+        for (byte b : extractor.getBytes(UTF_8)) {
+            hash = fnv(hash, b);
+        }
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[8192];
+        for (String file : sorted) {
+            for (byte b : file.getBytes(UTF_8)) {
+                hash = fnv(hash, b);
+            }
+            crc.reset();
+            long length = 0;
+            InputStream is = assetManager.open(dirPath + "/" + file);
+            try {
+                int read;
+                while ((read = is.read(buffer)) != -1) {
+                    crc.update(buffer, 0, read);
+                    length += read;
+                }
+            } finally {
+                is.close();
+            }
+            hash = fnv(hash, (int) length);
+            hash = fnv(hash, (int) crc.getValue());
+        }
+        return hash;
+    }
+
+    /**
+     * Maps the catalog file, returns null if it does not exist, is corrupted or was built from a
+     * different asset set.
+     */
+    public static FeatureCatalog read(File file, long assetVersion) {
+        File indexFile = indexFile(file);
+        if (!file.exists() || !indexFile.exists()) {
+            return null;
+        }
+        try {
+            ByteBuffer index = map(indexFile, 0, indexFile.length());
+            if (index.getInt() != MAGIC || index.getInt() != FORMAT_VERSION || index.getLong() != assetVersion) {
+                Log.d(TAG, file + " is stale");
+                return null;
+            }
+            long generation = index.getLong();
+            int descriptorBytes = index.getInt();
+            int rowCount = index.getInt();
+            int skuCount = index.getInt();
+            int faceCount = index.getInt();
+            int keypointCount = index.getInt();
+            String[] names = new String[skuCount];
+            int[] faceStarts = new int[skuCount + 1];
+            for (int i = 0; i < skuCount; i++) {
+                byte[] name = new byte[index.getInt()];
+                index.get(name);
+                names[i] = new String(name, UTF_8);
+                faceStarts[i] = index.getInt();
+            }
+            faceStarts[skuCount] = faceCount;
+            int[] descriptorStarts = new int[faceCount];
+            int[] descriptorEnds = new int[faceCount];
+            int[] keypointStarts = new int[faceCount + 1];
+            IntBuffer faces = index.asIntBuffer();
+            faces.get(descriptorStarts);
+            faces.get(descriptorEnds);
+            faces.get(keypointStarts);
+            index.position(index.position() + faces.position() * 4);
+            float[] keypointX = new float[keypointCount];
+            float[] keypointY = new float[keypointCount];
+            FloatBuffer keypoints = index.asFloatBuffer();
+            keypoints.get(keypointX);
+            keypoints.get(keypointY);
+
+            ByteBuffer rows = map(file, 0, DATA_OFFSET + (long) rowCount * descriptorBytes);
+            if (rows.getInt() != MAGIC || rows.getInt() != FORMAT_VERSION || rows.getLong() != assetVersion ||
+                    rows.getLong() != generation || rows.getInt() != descriptorBytes) {
+                Log.d(TAG, file + " does not match its index");
+                return null;
+            }
+            rows.position(DATA_OFFSET);
+            ByteBuffer data = rows.slice();
+            Mat descriptors = wrap(data, 0, rowCount, descriptorBytes, CvType.CV_8UC1);
+            return new FeatureCatalog(names, faceStarts, descriptorStarts, descriptorEnds, keypointStarts,
+                    keypointX, keypointY, descriptorBytes, descriptors, data, generation);
+        } catch (Exception e) {
+            Log.w(TAG, "failed to open " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the catalog to temporary files and moves them over {@code file} and its index, an
+     * existing mapping of the old files stays valid.
+     */
+    public static void write(File file, long assetVersion, FeatureCatalog catalog) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            raf.setLength(DATA_OFFSET + (long) catalog.getRowCount() * catalog.getDescriptorBytes());
+            channel.write(header(assetVersion, catalog.getGeneration(), catalog.getDescriptorBytes()), 0);
+            channel.write(catalog.getDescriptorData(), DATA_OFFSET);
+            channel.force(false);
+        } finally {
+            raf.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("failed to move " + tmp + " to " + file);
+        }
+        writeIndex(file, assetVersion, catalog);
+    }
+
+    /**
+     * Applies the changes of {@code builder} to the catalog file it was derived from and maps
+     * the result: only the rows of the added faces are written, after the rows of the base
+     * catalog, and the index is replaced. The file is rewritten instead if it does not hold the
+     * rows of the base catalog, or if more than half of its rows would have no owner.
+     */
+    public static FeatureCatalog append(File file, long assetVersion, FeatureCatalog.Builder builder) throws IOException {
+        final FeatureCatalog base = builder.getBase();
+        if (base == null || base.getDescriptorBytes() == 0 || !holds(file, assetVersion, base)) {
+            return rewrite(file, assetVersion, builder);
+        }
+        final int bytes = base.getDescriptorBytes();
+        final List<Mat> added = builder.getAddedDescriptors();
+        int addedRows = 0;
+        for (Mat des : added) {
+            if (des.cols() != bytes) {
+                return rewrite(file, assetVersion, builder);
+            }
+            addedRows += des.rows();
+        }
+        final int rowCount = base.getRowCount() + addedRows;
+        if ((rowCount - builder.getDescriptorCount()) * 2 > rowCount) {
+            Log.d(TAG, "compacting " + file);
+            return rewrite(file, assetVersion, builder);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            long position = DATA_OFFSET + (long) base.getRowCount() * bytes;
+            for (Mat des : added) {
+                byte[] rows = new byte[des.rows() * bytes];
+                des.get(0, 0, rows);
+                channel.write(ByteBuffer.wrap(rows), position);
+                position += rows.length;
+            }
+            channel.force(false);
+        } finally {
+            raf.close();
+        }
+        ByteBuffer rows = map(file, DATA_OFFSET, (long) rowCount * bytes);
+        FeatureCatalog catalog = builder.build(rows, base.getRowCount());
+        writeIndex(file, assetVersion, catalog);
+        return catalog;
+    }
+
+    private static FeatureCatalog rewrite(File file, long assetVersion, FeatureCatalog.Builder builder) throws IOException {
+        FeatureCatalog catalog = builder.build();
+        write(file, assetVersion, catalog);
+        FeatureCatalog mapped = read(file, assetVersion);
+        return mapped != null ? mapped : catalog;
+    }
+
+    /**
+     * Returns whether the rows file holds the rows of {@code catalog}, rows past them may be
+     * left over from an update that failed before its index was written.
+     */
+    private static boolean holds(File file, long assetVersion, FeatureCatalog catalog) throws IOException {
+        if (!file.exists() || file.length() < DATA_OFFSET + (long) catalog.getRowCount() * catalog.getDescriptorBytes()) {
+            return false;
+        }
+        ByteBuffer header = map(file, 0, DATA_OFFSET);
+        return header.getInt() == MAGIC && header.getInt() == FORMAT_VERSION && header.getLong() == assetVersion &&
+                header.getLong() == catalog.getGeneration() && header.getInt() == catalog.getDescriptorBytes();
+    }
+
+    private static void writeIndex(File file, long assetVersion, FeatureCatalog catalog) throws IOException {
+        int faceCount = catalog.getFaceCount();
+        int size = 4 * 2 + 8 * 2 + 4 * 5;
+        for (int i = 0; i < catalog.getSkuCount(); i++) {
+            size += 4 + catalog.getSkuName(i).getBytes(UTF_8).length + 4;
+        }
+        size += (faceCount * 3 + 1) * 4 + catalog.getKeypointCount() * 2 * 4;
+        ByteBuffer index = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+        index.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(assetVersion).putLong(catalog.getGeneration())
+                .putInt(catalog.getDescriptorBytes()).putInt(catalog.getRowCount())
+                .putInt(catalog.getSkuCount()).putInt(faceCount).putInt(catalog.getKeypointCount());
+        for (int i = 0; i < catalog.getSkuCount(); i++) {
+            byte[] bytes = catalog.getSkuName(i).getBytes(UTF_8);
+            index.putInt(bytes.length).put(bytes).putInt(catalog.getFaceStart(i));
+        }
+        IntBuffer faces = index.asIntBuffer();
+        faces.put(catalog.getDescriptorStarts()).put(catalog.getDescriptorEnds()).put(catalog.getKeypointStarts());
+        index.position(index.position() + faces.position() * 4);
+        index.asFloatBuffer().put(catalog.getKeypointX()).put(catalog.getKeypointY());
+        index.clear();
+
+        File indexFile = indexFile(file);
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.setLength(size);
+            raf.getChannel().write(index, 0);
+            raf.getChannel().force(false);
+        } finally {
+            raf.close();
+        }
+        if (!tmp.renameTo(indexFile)) {
+            throw new IOException("failed to move " + tmp + " to " + indexFile);
+        }
+    }
+
+    private static ByteBuffer header(long assetVersion, long generation, int descriptorBytes) {
+        ByteBuffer header = ByteBuffer.allocate(DATA_OFFSET).order(ByteOrder.nativeOrder());
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(assetVersion).putLong(generation).putInt(descriptorBytes);
+        header.clear();
+        return header;
+    }
+
+    private static MappedByteBuffer map(File file, long offset, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, size);
+            buffer.order(ByteOrder.nativeOrder());
+            return buffer;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static File indexFile(File file) {
+        return new File(file.getPath() + INDEX_SUFFIX);
+    }
+
+    /**
+     * Returns a mat over {@code rows * cols} elements of {@code buffer} starting at
+     * {@code offset}, a header over the buffer if it is direct and native-lib is loaded, a copy
+     * otherwise.
+     */
+    static Mat wrap(ByteBuffer buffer, long offset, int rows, int cols, int type) {
+        if (rows == 0) {
+            return new Mat();
+        }
+        if (NativeLoader.isLoaded()) {
+            long addr = nativeWrap(buffer, offset, rows, cols, type);
+            if (addr != 0) {
+                return new Mat(addr);
+            }
+        }
+        Mat mat = new Mat(rows, cols, type);
+        ByteBuffer src = buffer.duplicate().order(ByteOrder.nativeOrder());
+        src.position((int) offset);
+        byte[] data = new byte[rows * cols * CvType.channels(type)];
+        src.get(data);
+        mat.put(0, 0, data);
+        return mat;
+    }
+
+    private static long fnv(long hash, int value) {
+        for (int i = 0; i < 4; i++) {
+            hash ^= (value >>> (i * 8)) & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Creates a cv::Mat header over {@code rows * cols} elements of a direct buffer starting at
+     * {@code offset}, returns its address or 0 if the buffer is not direct.
+     */
+    private static native long nativeWrap(ByteBuffer buffer, long offset, int rows, int cols, int type);
+}
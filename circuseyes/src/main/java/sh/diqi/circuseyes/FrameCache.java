@@ -0,0 +1,120 @@
+package sh.diqi.circuseyes;
+
+import android.graphics.Bitmap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of results keyed by a perceptual hash of the frame they were
+ * computed for, so a near duplicate of a recent frame, such as the next frame of a fixed shelf
+ * camera, gets the same results without running recognition.
+ * <p>
+ * Frames are hashed with a 64 bit difference hash (dHash) of a 9x8 greyscale thumbnail, every
+ * bit telling whether a thumbnail pixel is brighter than its right neighbour. A lookup hits the
+ * most recently used entry whose hash differs in at most {@code tolerance} bits, 0 only matching
+ * frames with the same thumbnail gradients.
+ */
+class FrameCache<T> {
+
+    private static final int HASH_WIDTH = 9;
+    private static final int HASH_HEIGHT = 8;
+    // Thumbnail pixels are averaged from this many samples per side, scaling straight down to
+    // 9x8 only samples a few frame pixels.
+    private static final int OVERSAMPLING = 4;
+
+    private final int mCapacity;
+    private final int mTolerance;
+    private final LinkedHashMap<Long, T> mEntries;
+    private final int[] mPixels = new int[HASH_WIDTH * HASH_HEIGHT * OVERSAMPLING * OVERSAMPLING];
+    private final int[] mThumbnail = new int[HASH_WIDTH * HASH_HEIGHT];
+    private int mHits;
+    private int mMisses;
+
+    /**
+     * @param capacity number of frames whose results are kept
+     * @param tolerance maximum number of differing hash bits of near duplicate frames
+     */
+    FrameCache(final int capacity, int tolerance) {
+        mCapacity = capacity;
+        mTolerance = tolerance;
+        mEntries = new LinkedHashMap<Long, T>(capacity + 1, 1f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, T> eldest) {
+                return size() > mCapacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the results of a near duplicate of the frame with the given hash, or null.
+     */
+    public synchronized T get(long hash) {
+        Long match = null;
+        // Iterates from the least recently used, so the last match is the most recent one.
+        for (Long key : mEntries.keySet()) {
+            if (Long.bitCount(key ^ hash) <= mTolerance) {
+                match = key;
+            }
+        }
+        if (match == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return mEntries.get(match);
+    }
+
+    public synchronized void put(long hash, T results) {
+        mEntries.put(hash, results);
+    }
+
+    /**
+     * Forgets every entry, for when the results of the same frame would change.
+     */
+    public synchronized void invalidate() {
+        mEntries.clear();
+    }
+
+    public synchronized int getHits() {
+        return mHits;
+    }
+
+    public synchronized int getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * Difference hash of the frame: bit {@code y * 8 + x} is set when the thumbnail pixel
+     * {@code (x, y)} is brighter than its right neighbour.
+     */
+    public synchronized long hash(Bitmap frame) {
+        final int width = HASH_WIDTH * OVERSAMPLING;
+        final int height = HASH_HEIGHT * OVERSAMPLING;
+        final Bitmap scaled = Bitmap.createScaledBitmap(frame, width, height, true);
+        scaled.getPixels(mPixels, 0, width, 0, 0, width, height);
+        if (scaled != frame) {
+            scaled.recycle();
+        }
+        for (int i = 0; i < mThumbnail.length; i++) {
+            mThumbnail[i] = 0;
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int pixel = mPixels[y * width + x];
+                // Integer luma, BT.601 weights scaled by 256.
+                final int luma = 77 * ((pixel >> 16) & 0xff) + 150 * ((pixel >> 8) & 0xff) + 29 * (pixel & 0xff);
+                mThumbnail[(y / OVERSAMPLING) * HASH_WIDTH + x / OVERSAMPLING] += luma;
+            }
+        }
+        long hash = 0;
+        for (int y = 0; y < HASH_HEIGHT; y++) {
+            for (int x = 0; x < HASH_WIDTH - 1; x++) {
+                if (mThumbnail[y * HASH_WIDTH + x] > mThumbnail[y * HASH_WIDTH + x + 1]) {
+                    hash |= 1L << (y * (HASH_WIDTH - 1) + x);
+                }
+            }
+        }
+        return hash;
+    }
+}
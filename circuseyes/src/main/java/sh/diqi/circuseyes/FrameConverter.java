@@ -0,0 +1,110 @@
+package sh.diqi.circuseyes;
+
+import android.graphics.ImageFormat;
+import android.graphics.PixelFormat;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts camera frames to the packed RGB input of a detector, scaling them in the same pass.
+ * <p>
+ * With native-lib and direct buffers the frame is sampled straight into the destination buffer,
+ * otherwise it is converted with OpenCV, which takes a few extra copies.
+ */
+final class FrameConverter {
+
+    // Layouts of nativeToRgb.
+    private static final int LAYOUT_NV21 = 0;
+    private static final int LAYOUT_YUYV = 1;
+    private static final int LAYOUT_RGBX = 2;
+
+    private FrameConverter() {
+    }
+
+    public static boolean isSupported(int format) {
+        return format == ImageFormat.NV21 || format == ImageFormat.YUY2 || format == PixelFormat.RGBA_8888;
+    }
+
+    /**
+     * Number of bytes of a {@code width * height} frame of the given format.
+     */
+    public static long frameSize(int width, int height, int format) {
+        final long pixels = (long) width * height;
+        if (format == ImageFormat.NV21) {
+            return pixels * 3 / 2;
+        }
+        return format == ImageFormat.YUY2 ? pixels * 2 : pixels * 4;
+    }
+
+    /**
+     * Writes {@code frame}, a {@code width * height} NV21, YUY2 (YUYV) or RGBA_8888 (RGBX) image,
+     * scaled to
+     * {@code dstWidth * dstHeight} with nearest neighbour sampling as packed RGB bytes at the
+     * start of {@code rgb}. The position and limit of both buffers are left unchanged.
+     *
+     * @throws IllegalArgumentException if a size is not positive, NV21 dimensions or a YUY2
+     *                                  width are odd, or a buffer is smaller than its image
+     */
+    public static void toRgb(ByteBuffer frame, int width, int height, int format,
+                             ByteBuffer rgb, int dstWidth, int dstHeight) {
+        if (!isSupported(format)) {
+            throw new IllegalArgumentException("unsupported frame format " + format);
+        }
+        if (width <= 0 || height <= 0 || dstWidth <= 0 || dstHeight <= 0) {
+            throw new IllegalArgumentException("invalid size " + width + "x" + height + " to " + dstWidth + "x" + dstHeight);
+        }
+        // Chroma is subsampled by pairs of columns, and of rows for NV21.
+        if ((format == ImageFormat.NV21 && (width % 2 != 0 || height % 2 != 0)) ||
+                (format == ImageFormat.YUY2 && width % 2 != 0)) {
+            throw new IllegalArgumentException("odd " + width + "x" + height + " frame of format " + format);
+        }
+        final long frameSize = frameSize(width, height, format);
+        if (frame.capacity() < frameSize) {
+            throw new IllegalArgumentException("frame buffer too small: " + frame.capacity() + " < " + frameSize);
+        }
+        if (rgb.capacity() < (long) dstWidth * dstHeight * 3) {
+            throw new IllegalArgumentException("rgb buffer too small: " + rgb.capacity());
+        }
+        if (NativeLoader.isLoaded() && frame.isDirect() && rgb.isDirect()) {
+            final int layout = format == ImageFormat.NV21 ? LAYOUT_NV21 :
+                    (format == ImageFormat.YUY2 ? LAYOUT_YUYV : LAYOUT_RGBX);
+            nativeToRgb(frame, width, height, layout, rgb, dstWidth, dstHeight);
+            return;
+        }
+        Mat image;
+        int code;
+        if (format == ImageFormat.NV21) {
+            image = new Mat(height * 3 / 2, width, CvType.CV_8UC1);
+            code = Imgproc.COLOR_YUV2RGB_NV21;
+        } else if (format == ImageFormat.YUY2) {
+            image = new Mat(height, width, CvType.CV_8UC2);
+            code = Imgproc.COLOR_YUV2RGB_YUYV;
+        } else {
+            image = new Mat(height, width, CvType.CV_8UC4);
+            code = Imgproc.COLOR_RGBA2RGB;
+        }
+        byte[] data = new byte[(int) (image.total() * image.elemSize())];
+        ByteBuffer src = frame.duplicate();
+        src.clear();
+        src.get(data);
+        image.put(0, 0, data);
+        Mat rgbMat = new Mat();
+        Imgproc.cvtColor(image, rgbMat, code);
+        Imgproc.resize(rgbMat, rgbMat, new Size(dstWidth, dstHeight), 0, 0, Imgproc.INTER_NEAREST);
+        data = new byte[dstWidth * dstHeight * 3];
+        rgbMat.get(0, 0, data);
+        ByteBuffer dst = rgb.duplicate();
+        dst.clear();
+        dst.put(data);
+        image.release();
+        rgbMat.release();
+    }
+
+    private static native void nativeToRgb(ByteBuffer frame, int width, int height, int layout,
+                                           ByteBuffer rgb, int dstWidth, int dstHeight);
+}
@@ -0,0 +1,118 @@
+package sh.diqi.circuseyes;
+
+import java.util.ArrayDeque;
+
+/**
+ * Hands frames from the camera to the detector without letting work pile up.
+ * <p>
+ * By default it is a single slot mailbox: a frame arriving while the previous one still waits
+ * replaces it, so the detector always gets the latest frame and a frame never waits longer than
+ * one inference. Given a queue size it keeps frames in order instead, for recordings where every
+ * frame matters, and drops new frames once the queue is full. Either way the producer never
+ * blocks.
+ */
+class FrameScheduler<T> {
+
+    private final ArrayDeque<T> mPending;
+    private final int mQueueSize;
+    private long mSubmitted;
+    private long mCoalesced;
+    private long mDropped;
+    private long mProcessed;
+
+    /**
+     * @param queueSize number of frames waiting in order, 0 to keep only the latest frame
+     */
+    FrameScheduler(int queueSize) {
+        mQueueSize = queueSize;
+        mPending = new ArrayDeque<>(Math.max(queueSize, 1));
+    }
+
+    /**
+     * Number of frames which can be waiting at once.
+     */
+    public int capacity() {
+        return Math.max(mQueueSize, 1);
+    }
+
+    /**
+     * Takes back the waiting frame a new frame replaces, so its buffers can be reused, or
+     * returns null if there is none or frames are queued.
+     */
+    public synchronized T reclaim() {
+        if (mQueueSize > 0 || mPending.isEmpty()) {
+            return null;
+        }
+        mCoalesced++;
+        return mPending.poll();
+    }
+
+    /**
+     * Counts a frame dropped before being offered, for lack of buffers.
+     */
+    public synchronized void drop() {
+        mSubmitted++;
+        mDropped++;
+    }
+
+    /**
+     * Queues a frame for the detector, returns false if it was dropped because the queue is
+     * full.
+     */
+    public synchronized boolean offer(T frame) {
+        mSubmitted++;
+        if (mPending.size() >= capacity()) {
+            mDropped++;
+            return false;
+        }
+        mPending.add(frame);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Waits for the next frame.
+     */
+    public synchronized T take() throws InterruptedException {
+        while (mPending.isEmpty()) {
+            wait();
+        }
+        mProcessed++;
+        return mPending.poll();
+    }
+
+    /**
+     * Removes the waiting frames, which are neither processed nor counted as dropped.
+     */
+    public synchronized T poll() {
+        return mPending.poll();
+    }
+
+    public synchronized long getSubmittedFrames() {
+        return mSubmitted;
+    }
+
+    /**
+     * Frames replaced by a newer one before being processed.
+     */
+    public synchronized long getCoalescedFrames() {
+        return mCoalesced;
+    }
+
+    /**
+     * Frames dropped on arrival, because every buffer was busy or the queue full.
+     */
+    public synchronized long getDroppedFrames() {
+        return mDropped;
+    }
+
+    public synchronized long getProcessedFrames() {
+        return mProcessed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mSubmitted + " frames submitted, " + mProcessed + " processed, " + mCoalesced
+                + " coalesced, " + mDropped + " dropped";
+    }
+}
@@ -0,0 +1,272 @@
+package sh.diqi.circuseyes;
+
+import org.opencv.core.Mat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Locality sensitive hash index over binary descriptors (BRISK, ORB, ...).
+ * <p>
+ * Every table hashes a descriptor on a fixed random subset of its bits, so descriptors within a
+ * small Hamming distance of each other are likely to share a bucket in at least one table.
+ * A query descriptor is compared exactly only with the descriptors found in its buckets, and its
+ * nearest neighbour votes for the face it belongs to. Faces with the most votes are the candidates
+ * worth running the full ratio test against. The tables only hold descriptor ids, descriptors are
+ * read from the catalog buffer, which may be mapped from the catalog file.
+ */
+class HammingHashIndex implements FaceRanker {
+
+    private static final int DEFAULT_TABLE_COUNT = 6;
+    private static final int DEFAULT_KEY_BITS = 16;
+    private static final long SEED = 0x5eedL;
+
+    private static final float RATIO = 0.75f;
+    private static final int MAX_DISTANCE = 96;
+    private static final int MINIMUM_VOTES = 2;
+
+    private final int mTableCount;
+    private final int mKeyBits;
+    private final int mBytes;
+    private final int mFaceCount;
+    // Descriptors are read in place, never copied.
+    private final ByteBuffer mDescriptors;
+    // Face of every row, -1 for rows no face owns.
+    private final int[] mOwners;
+    private int mDescriptorCount;
+    private final int[][] mBitPositions;
+    private final int[][] mBucketStarts;
+    private final int[][] mBucketEntries;
+
+    private HammingHashIndex(int tableCount, int keyBits, int bytes, int faceCount, ByteBuffer descriptors, int[] owners) {
+        mTableCount = tableCount;
+        mKeyBits = keyBits;
+        mBytes = bytes;
+        mFaceCount = faceCount;
+        mDescriptors = descriptors;
+        mOwners = owners;
+        mBitPositions = new int[tableCount][keyBits];
+        mBucketStarts = new int[tableCount][];
+        mBucketEntries = new int[tableCount][];
+    }
+
+    /**
+     * Builds an index over the descriptors of all faces of the catalog, votes returned by
+     * {@link #vote(Mat)} are indexed by face id.
+     */
+    public static HammingHashIndex build(FeatureCatalog catalog) {
+        return build(catalog, DEFAULT_TABLE_COUNT, DEFAULT_KEY_BITS);
+    }
+
+    public static HammingHashIndex build(FeatureCatalog catalog, int tableCount, int keyBits) {
+        return build(catalog.getDescriptorData(), catalog.getDescriptorBytes(), catalog.getRowCount(),
+                catalog.getDescriptorStarts(), catalog.getDescriptorEnds(), tableCount, keyBits);
+    }
+
+    /**
+     * Builds an index over {@code rows} descriptors of {@code bytes} bytes stored row after row
+     * in a little endian buffer, face {@code f} owning rows {@code descriptorStarts[f]} to
+     * {@code descriptorEnds[f] - 1}. Rows no face owns are not indexed.
+     */
+    static HammingHashIndex build(ByteBuffer descriptors, int bytes, int rows, int[] descriptorStarts, int[] descriptorEnds,
+                                  int tableCount, int keyBits) {
+        final int faceCount = descriptorStarts.length;
+        final int[] owners = new int[rows];
+        Arrays.fill(owners, -1);
+        for (int face = 0; face < faceCount; face++) {
+            Arrays.fill(owners, descriptorStarts[face], descriptorEnds[face], face);
+        }
+        HammingHashIndex index = new HammingHashIndex(tableCount, keyBits, bytes, faceCount, descriptors, owners);
+        index.buildTables(new Random(SEED), Math.max(bytes * 8, 1));
+        return index;
+    }
+
+    private void buildTables(Random random, int bits) {
+        final int rows = mOwners.length;
+        final int buckets = 1 << mKeyBits;
+        int descriptors = 0;
+        for (int i = 0; i < rows; i++) {
+            if (mOwners[i] >= 0) {
+                descriptors++;
+            }
+        }
+        mDescriptorCount = descriptors;
+        for (int table = 0; table < mTableCount; table++) {
+            for (int k = 0; k < mKeyBits; k++) {
+                mBitPositions[table][k] = random.nextInt(bits);
+            }
+            int[] starts = new int[buckets + 1];
+            int[] keys = new int[rows];
+            for (int i = 0; i < rows; i++) {
+                if (mOwners[i] >= 0) {
+                    keys[i] = key(table, mDescriptors, i * mBytes);
+                    starts[keys[i] + 1]++;
+                }
+            }
+            for (int b = 0; b < buckets; b++) {
+                starts[b + 1] += starts[b];
+            }
+            int[] fill = Arrays.copyOf(starts, buckets);
+            int[] entries = new int[descriptors];
+            for (int i = 0; i < rows; i++) {
+                if (mOwners[i] >= 0) {
+                    entries[fill[keys[i]]++] = i;
+                }
+            }
+            mBucketStarts[table] = starts;
+            mBucketEntries[table] = entries;
+        }
+    }
+
+    @Override
+    public int getFaceCount() {
+        return mFaceCount;
+    }
+
+    public int getDescriptorCount() {
+        return mDescriptorCount;
+    }
+
+    /**
+     * Looks up every descriptor of the query image and counts, per face, how many of them had
+     * their nearest neighbour in that face and passed the ratio test against the nearest
+     * descriptor of any other face.
+     */
+    public int[] vote(Mat query) {
+        if (query.empty()) {
+            return new int[mFaceCount];
+        }
+        final byte[] buffer = new byte[query.rows() * query.cols()];
+        query.get(0, 0, buffer);
+        return vote(buffer, query.rows(), query.cols());
+    }
+
+    /**
+     * Same as {@link #vote(Mat)} for {@code rows} query descriptors of {@code bytes} bytes
+     * packed in {@code query}.
+     */
+    int[] vote(byte[] query, int rows, int bytes) {
+        final int[] votes = new int[mFaceCount];
+        if (rows == 0 || getDescriptorCount() == 0) {
+            return votes;
+        }
+        final long[] code = new long[BinaryDescriptors.words(mBytes)];
+        final VisitedSet visited = new VisitedSet();
+        final int[] buckets = new int[mTableCount];
+        for (int row = 0; row < rows; row++) {
+            Arrays.fill(code, 0);
+            BinaryDescriptors.pack(query, row * bytes, Math.min(bytes, mBytes), code, 0);
+            int candidates = 0;
+            for (int table = 0; table < mTableCount; table++) {
+                buckets[table] = key(table, code, 0);
+                candidates += mBucketStarts[table][buckets[table] + 1] - mBucketStarts[table][buckets[table]];
+            }
+            visited.reset(candidates);
+            int best = Integer.MAX_VALUE;
+            int second = Integer.MAX_VALUE;
+            int bestFace = -1;
+            for (int table = 0; table < mTableCount; table++) {
+                int[] entries = mBucketEntries[table];
+                for (int e = mBucketStarts[table][buckets[table]], end = mBucketStarts[table][buckets[table] + 1]; e < end; e++) {
+                    int candidate = entries[e];
+                    if (!visited.add(candidate)) {
+                        continue;
+                    }
+                    int distance = BinaryDescriptors.distance(code, 0, mDescriptors, candidate * mBytes, mBytes);
+                    int face = mOwners[candidate];
+                    if (distance < best) {
+                        if (face != bestFace) {
+                            second = best;
+                        }
+                        best = distance;
+                        bestFace = face;
+                    } else if (distance < second && face != bestFace) {
+                        second = distance;
+                    }
+                }
+            }
+            if (bestFace >= 0 && best <= MAX_DISTANCE &&
+                    (second == Integer.MAX_VALUE || best < RATIO * second)) {
+                votes[bestFace]++;
+            }
+        }
+        return votes;
+    }
+
+    @Override
+    public int[] rank(Mat query, int limit) {
+        return rank(vote(query), limit, MINIMUM_VOTES);
+    }
+
+    /**
+     * Returns the ids of at most {@code limit} faces with at least {@code minVotes} votes,
+     * ordered by descending votes and then by ascending id.
+     */
+    public static int[] rank(int[] votes, int limit, int minVotes) {
+        final float[] scores = new float[votes.length];
+        for (int face = 0; face < votes.length; face++) {
+            scores[face] = votes[face];
+        }
+        return FaceRanking.top(scores, limit, minVotes);
+    }
+
+    private int key(int table, long[] codes, int offset) {
+        int key = 0;
+        int[] positions = mBitPositions[table];
+        for (int k = 0; k < positions.length; k++) {
+            int bit = positions[k];
+            key |= (int) ((codes[offset + (bit >>> 6)] >>> (bit & 63)) & 1L) << k;
+        }
+        return key;
+    }
+
+    private int key(int table, ByteBuffer descriptors, int offset) {
+        int key = 0;
+        int[] positions = mBitPositions[table];
+        for (int k = 0; k < positions.length; k++) {
+            key |= BinaryDescriptors.bit(descriptors, offset, positions[k]) << k;
+        }
+        return key;
+    }
+
+    /**
+     * Open addressing set of the descriptors already compared for one query descriptor, sized to
+     * its buckets rather than to the catalog. Entries of the previous query descriptor are
+     * forgotten by moving to a new stamp instead of clearing the table.
+     */
+    private static final class VisitedSet {
+        private int[] mKeys = new int[0];
+        private int[] mStamps = new int[0];
+        private int mMask;
+        private int mStamp;
+
+        void reset(int expected) {
+            if (mKeys.length < expected * 2) {
+                int capacity = Integer.highestOneBit(Math.max(expected * 2 - 1, 1)) << 1;
+                mKeys = new int[capacity];
+                mStamps = new int[capacity];
+                mMask = capacity - 1;
+                mStamp = 0;
+            }
+            mStamp++;
+        }
+
+        /**
+         * Adds a descriptor, returns false if it was already there.
+         */
+        boolean add(int key) {
+            int hash = key * 0x9E3779B9;
+            int slot = (hash ^ (hash >>> 16)) & mMask;
+            while (mStamps[slot] == mStamp) {
+                if (mKeys[slot] == key) {
+                    return false;
+                }
+                slot = (slot + 1) & mMask;
+            }
+            mStamps[slot] = mStamp;
+            mKeys[slot] = key;
+            return true;
+        }
+    }
+}
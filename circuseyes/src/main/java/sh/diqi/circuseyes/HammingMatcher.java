@@ -0,0 +1,42 @@
+package sh.diqi.circuseyes;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Brute force 2-NN matcher for binary descriptors in native-lib, which matches many catalog
+ * faces against a query image in a single call and only returns the ratio test counts.
+ */
+final class HammingMatcher {
+
+    private HammingMatcher() {
+    }
+
+    public static boolean isAvailable() {
+        return NativeLoader.isLoaded();
+    }
+
+    /**
+     * For every face in {@code faces}, matches each of its catalog descriptors with its two
+     * nearest query descriptors and counts those passing the ratio test
+     * {@code d1 < ratio * d2}, the same as {@code knnMatch(face, query, 2)} followed by the test.
+     *
+     * @return good match counts, in the order of {@code faces}
+     */
+    public static int[] countGoodMatches(Mat query, FeatureCatalog catalog, int[] faces, int count, float ratio) {
+        int[] goods = new int[count];
+        if (count == 0 || query.empty() || catalog.getDescriptorCount() == 0) {
+            return goods;
+        }
+        if (query.type() != CvType.CV_8UC1 || query.cols() != catalog.getDescriptorBytes() || !query.isContinuous()) {
+            throw new IllegalArgumentException("query descriptors do not match the catalog: " + query);
+        }
+        nativeCountGoodMatches(query.getNativeObjAddr(), catalog.getDescriptors().getNativeObjAddr(),
+                catalog.getDescriptorStarts(), catalog.getDescriptorEnds(), faces, count, ratio, goods);
+        return goods;
+    }
+
+    private static native void nativeCountGoodMatches(long queryAddr, long catalogAddr, int[] descriptorStarts,
+                                                      int[] descriptorEnds, int[] faces, int count, float ratio,
+                                                      int[] goods);
+}
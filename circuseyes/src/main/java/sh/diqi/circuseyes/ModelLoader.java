@@ -0,0 +1,179 @@
+package sh.diqi.circuseyes;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+import org.tensorflow.Graph;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Loads frozen GraphDefs from a memory mapping instead of streaming them through heap buffers.
+ * <p>
+ * A model asset stored uncompressed in the APK (aaptOptions noCompress) is mapped in place. A
+ * compressed one is extracted into the cache directory and mapped from there on later starts,
+ * until the CRC of the asset changes. {@link Graph#importGraphDef(byte[])} only takes an array,
+ * so the mapping is still copied into a heap array as large as the model: peak heap use while
+ * loading is not lower than when streaming, only the inflating and the growing stream buffers
+ * are saved.
+ */
+final class ModelLoader {
+
+    private static final String ASSET_FILE_PREFIX = "file:///android_asset/";
+
+    private ModelLoader() {
+    }
+
+    /**
+     * Returns the imported graph, or null if the model is a compressed asset and there is no
+     * cache directory to extract it to.
+     */
+    public static Graph load(AssetManager assetManager, File cacheDir, String modelFilename) throws IOException {
+        final MappedByteBuffer mapped = map(assetManager, cacheDir, modelFilename);
+        if (mapped == null) {
+            return null;
+        }
+        final byte[] graphDef = new byte[mapped.remaining()];
+        mapped.get(graphDef);
+        final Graph graph = new Graph();
+        try {
+            graph.importGraphDef(graphDef);
+        } catch (IllegalArgumentException e) {
+            graph.close();
+            throw new IOException("Not a valid TensorFlow Graph serialization: " + modelFilename, e);
+        }
+        return graph;
+    }
+
+    public static MappedByteBuffer map(AssetManager assetManager, File cacheDir, String modelFilename) throws IOException {
+        if (!modelFilename.startsWith(ASSET_FILE_PREFIX)) {
+            return map(new File(modelFilename));
+        }
+        final String asset = modelFilename.substring(ASSET_FILE_PREFIX.length());
+        try {
+            AssetFileDescriptor afd = assetManager.openFd(asset);
+            FileInputStream is = afd.createInputStream();
+            try {
+                return is.getChannel().map(FileChannel.MapMode.READ_ONLY, afd.getStartOffset(), afd.getLength());
+            } finally {
+                is.close();
+            }
+        } catch (FileNotFoundException e) {
+            // Compressed in the APK, it has no file descriptor.
+        }
+        if (cacheDir == null) {
+            return null;
+        }
+        return map(file(assetManager, cacheDir, modelFilename));
+    }
+
+    /**
+     * Returns a file path for the model, extracting it into the cache directory first if it is
+     * an asset, for loaders which only take paths. The copy is extracted again whenever the
+     * length or CRC of the asset differs from the ones stored beside it, so a retrained model of
+     * the same size replaces it.
+     */
+    public static File file(AssetManager assetManager, File cacheDir, String modelFilename) throws IOException {
+        if (!modelFilename.startsWith(ASSET_FILE_PREFIX)) {
+            return new File(modelFilename);
+        }
+        final String asset = modelFilename.substring(ASSET_FILE_PREFIX.length());
+        final File cached = new File(cacheDir, "model_" + asset.replace('/', '_'));
+        final File versionFile = new File(cached.getPath() + ".version");
+        final long[] version = version(assetManager, asset);
+        if (cached.exists() && cached.length() == version[0] && matches(versionFile, version)) {
+            return cached;
+        }
+        // A copy without its version, for instance if extracting is interrupted, is never used.
+        if (versionFile.exists() && !versionFile.delete()) {
+            throw new IOException("failed to delete " + versionFile);
+        }
+        final InputStream is = assetManager.open(asset);
+        try {
+            extract(is, cached);
+        } finally {
+            is.close();
+        }
+        final DataOutputStream os = new DataOutputStream(new FileOutputStream(versionFile));
+        try {
+            os.writeLong(version[0]);
+            os.writeLong(version[1]);
+        } finally {
+            os.close();
+        }
+        return cached;
+    }
+
+    /**
+     * Length and CRC32 of the asset.
+     */
+    private static long[] version(AssetManager assetManager, String asset) throws IOException {
+        final CRC32 crc = new CRC32();
+        long length = 0;
+        final InputStream is = assetManager.open(asset);
+        try {
+            final byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+                length += read;
+            }
+        } finally {
+            is.close();
+        }
+        return new long[]{length, crc.getValue()};
+    }
+
+    private static boolean matches(File versionFile, long[] version) {
+        if (versionFile.length() != 16) {
+            return false;
+        }
+        try {
+            final DataInputStream is = new DataInputStream(new FileInputStream(versionFile));
+            try {
+                return is.readLong() == version[0] && is.readLong() == version[1];
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void extract(InputStream is, File file) throws IOException {
+        final File tmp = new File(file.getPath() + ".tmp");
+        final OutputStream os = new FileOutputStream(tmp);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                os.write(buffer, 0, read);
+            }
+        } finally {
+            os.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("failed to move " + tmp + " to " + file);
+        }
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        final FileInputStream is = new FileInputStream(file);
+        try {
+            return is.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package sh.diqi.circuseyes;
+
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.video.BackgroundSubtractor;
+import org.opencv.video.Video;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tells which regions of a mostly static scene changed since the background it learnt, so only
+ * they are recognized again.
+ * <p>
+ * A copy of every frame downscaled to 320 pixels on its longer side feeds a MOG2 or KNN
+ * background subtractor. Shadows are ignored and specks are opened away. Frames with fewer
+ * changed pixels than a threshold report nothing. Otherwise the bounding boxes of the changed
+ * areas, grown by a margin for context, are merged with a {@link BoxMerger}. Not thread safe.
+ */
+class MotionGate {
+
+    // Longer side of the frames given to the background subtractor.
+    private static final int GATE_SIZE = 320;
+    private static final int HISTORY = 500;
+    private static final double MOG2_VAR_THRESHOLD = 16;
+    private static final double KNN_DIST2_THRESHOLD = 400;
+    // Foreground is 255 and shadows 127 in the mask.
+    private static final double FOREGROUND_THRESH = 200;
+    private static final double FOREGROUND_MAXVAL = 255;
+
+    private final BackgroundSubtractor mSubtractor;
+    private final Mat mRgba = new Mat();
+    private final Mat mSmall = new Mat();
+    private final Mat mRgb = new Mat();
+    private final Mat mMask = new Mat();
+    private final Mat mHierarchy = new Mat();
+    private final Mat mKernel = Imgproc.getStructuringElement(Imgproc.MORPH_ELLIPSE, new Size(3, 3));
+    private final List<MatOfPoint> mContours = new ArrayList<>();
+    private final BoxMerger mBoxMerger = new BoxMerger();
+    private float mChangedRatio;
+
+    /**
+     * @param knn uses the KNN background subtractor instead of MOG2
+     */
+    MotionGate(boolean knn) {
+        mSubtractor = knn ?
+                Video.createBackgroundSubtractorKNN(HISTORY, KNN_DIST2_THRESHOLD, true) :
+                Video.createBackgroundSubtractorMOG2(HISTORY, MOG2_VAR_THRESHOLD, true);
+    }
+
+    /**
+     * Learns the frame and returns the regions which changed in it in frame coordinates, or
+     * none if less than {@code minimumChangedRatio} of the frame changed.
+     *
+     * @param margin fraction of the shorter frame side the regions grow by
+     */
+    public List<RectF> apply(Bitmap frame, float minimumChangedRatio, float margin) {
+        final int width = frame.getWidth();
+        final int height = frame.getHeight();
+        final double scale = Math.min(1d, GATE_SIZE / (double) Math.max(width, height));
+        Utils.bitmapToMat(frame, mRgba);
+        Imgproc.resize(mRgba, mSmall, new Size(), scale, scale, Imgproc.INTER_AREA);
+        Imgproc.cvtColor(mSmall, mRgb, Imgproc.COLOR_RGBA2RGB);
+        mSubtractor.apply(mRgb, mMask);
+        Imgproc.threshold(mMask, mMask, FOREGROUND_THRESH, FOREGROUND_MAXVAL, Imgproc.THRESH_BINARY);
+        Imgproc.morphologyEx(mMask, mMask, Imgproc.MORPH_OPEN, mKernel);
+        mChangedRatio = Core.countNonZero(mMask) / (float) mMask.total();
+        if (mChangedRatio < minimumChangedRatio) {
+            return Collections.emptyList();
+        }
+
+        mContours.clear();
+        Imgproc.findContours(mMask, mContours, mHierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
+        mBoxMerger.clear();
+        final float scaleX = width / (float) mMask.cols();
+        final float scaleY = height / (float) mMask.rows();
+        final float grow = Math.min(width, height) * margin;
+        for (MatOfPoint contour : mContours) {
+            final Rect rect = Imgproc.boundingRect(contour);
+            mBoxMerger.add(Math.max(rect.x * scaleX - grow, 0),
+                    Math.max(rect.y * scaleY - grow, 0),
+                    Math.min((rect.x + rect.width) * scaleX + grow, width),
+                    Math.min((rect.y + rect.height) * scaleY + grow, height),
+                    rect.width * rect.height, 0);
+            contour.release();
+        }
+        mContours.clear();
+        final int count = mBoxMerger.merge();
+        final List<RectF> regions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final int box = mBoxMerger.getKept(i);
+            regions.add(new RectF(mBoxMerger.getLeft(box), mBoxMerger.getTop(box),
+                    mBoxMerger.getRight(box), mBoxMerger.getBottom(box)));
+        }
+        return regions;
+    }
+
+    /**
+     * Fraction of the last frame which changed.
+     */
+    public float getChangedRatio() {
+        return mChangedRatio;
+    }
+
+    public void release() {
+        mRgba.release();
+        mSmall.release();
+        mRgb.release();
+        mMask.release();
+        mHierarchy.release();
+        mKernel.release();
+    }
+}
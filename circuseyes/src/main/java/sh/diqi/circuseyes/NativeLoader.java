@@ -0,0 +1,32 @@
+package sh.diqi.circuseyes;
+
+import android.util.Log;
+
+/**
+ * Loads the native-lib library of this module once, callers fall back to Java implementations
+ * when it is not available.
+ */
+final class NativeLoader {
+
+    private static final String TAG = NativeLoader.class.getSimpleName();
+
+    private static final boolean LOADED;
+
+    static {
+        boolean loaded = false;
+        try {
+            System.loadLibrary("native-lib");
+            loaded = true;
+        } catch (UnsatisfiedLinkError e) {
+            Log.w(TAG, "native-lib not available", e);
+        }
+        LOADED = loaded;
+    }
+
+    private NativeLoader() {
+    }
+
+    public static boolean isLoaded() {
+        return LOADED;
+    }
+}
@@ -0,0 +1,285 @@
+package sh.diqi.circuseyes;
+
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.dnn.Dnn;
+import org.opencv.dnn.Net;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Vector;
+
+/**
+ * {@link Classifier} running SSD detection graphs exported by the Tensorflow Object Detection API
+ * with OpenCV DNN instead of TensorFlow, which also takes {@link Mat} input directly.
+ * <p>
+ * OpenCV 3.3 needs the text graph description matching the frozen graph, such as the
+ * {@code ssd_mobilenet_v1_coco.pbtxt} published with the OpenCV samples. Class ids index the same
+ * label file as the TensorFlow model.
+ */
+public class OpenCvDnnDetector implements Classifier {
+
+    private static final String TAG = OpenCvDnnDetector.class.getSimpleName();
+
+    // Only return this many results.
+    private static final int MAX_RESULTS = 100;
+    // detection_out rows are [image, class, score, left, top, right, bottom].
+    private static final int DETECTION_SIZE = 7;
+    // Preprocessing the TensorFlow graph does itself, stripped by the OpenCV importer.
+    private static final double SCALE_FACTOR = 1 / 127.5;
+    private static final Scalar MEAN = new Scalar(127.5, 127.5, 127.5);
+
+    private final Vector<String> mLabels = new Vector<>();
+    // Labels by class id, shared with the batches filled.
+    private String[] mLabelTable;
+    private Net mNet;
+    private int mInputSize;
+    private Size mBlobSize;
+    private boolean mLogStats;
+    // Cold start costs, in ms, -1 until known.
+    private long mLoadTime = -1;
+    private volatile long mFirstInferenceTime = -1;
+    private volatile long mLastInferenceTime = -1;
+
+    private final Mat mRgba = new Mat();
+    private final Mat mRgb = new Mat();
+    private Mat mInput;
+    private byte[] mInputBytes;
+    private ByteBuffer mFrameBuffer;
+    private float[] mOutput = new float[MAX_RESULTS * DETECTION_SIZE];
+
+    /**
+     * Loads a frozen graph and its text description with OpenCV DNN.
+     *
+     * @param assetManager The asset manager to be used to load assets.
+     * @param cacheDir The directory assets are extracted to, OpenCV only reads files.
+     * @param modelFilename The filepath of the model GraphDef protocol buffer.
+     * @param configFilename The filepath of the text graph description of the model.
+     * @param labelFilename The filepath of label file for classes.
+     */
+    public static OpenCvDnnDetector create(
+            final AssetManager assetManager,
+            final File cacheDir,
+            final String modelFilename,
+            final String configFilename,
+            final String labelFilename,
+            final int inputSize) throws IOException {
+        final long startTime = SystemClock.uptimeMillis();
+        final OpenCvDnnDetector d = new OpenCvDnnDetector();
+        String actualFilename = labelFilename.split("file:///android_asset/")[1];
+        BufferedReader br = new BufferedReader(new InputStreamReader(assetManager.open(actualFilename)));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                d.mLabels.add(line);
+            }
+        } finally {
+            br.close();
+        }
+        d.mLabelTable = d.mLabels.toArray(new String[d.mLabels.size()]);
+        final File model = ModelLoader.file(assetManager, cacheDir, modelFilename);
+        final File config = ModelLoader.file(assetManager, cacheDir, configFilename);
+        d.mNet = Dnn.readNetFromTensorflow(model.getPath(), config.getPath());
+        if (d.mNet.empty()) {
+            throw new IOException("Failed to load " + modelFilename + " with " + configFilename);
+        }
+        d.mInputSize = inputSize;
+        d.mBlobSize = new Size(inputSize, inputSize);
+        d.mLoadTime = SystemClock.uptimeMillis() - startTime;
+        Log.d(TAG, d.mLoadTime + " ms taken to load " + modelFilename);
+        return d;
+    }
+
+    private OpenCvDnnDetector() {
+    }
+
+    /**
+     * Recognizes an RGB image of any size, the locations of the {@code results.capacity()} most
+     * confident detections being in its pixel coordinates.
+     */
+    public void recognizeImage(Mat rgb, DetectionBatch results) {
+        final Mat blob = Dnn.blobFromImage(rgb, SCALE_FACTOR, mBlobSize, MEAN, false, false);
+        final Mat output = forward(blob);
+        blob.release();
+        collect(output, 0, rgb.cols(), rgb.rows(), results);
+        output.release();
+    }
+
+    @Override
+    public List<Recognition> recognizeImage(final Bitmap bitmap) {
+        final DetectionBatch detections = new DetectionBatch(MAX_RESULTS);
+        recognizeImage(bitmap, detections);
+        return new ArrayList<>(detections.asList());
+    }
+
+    @Override
+    public void recognizeImage(final Bitmap bitmap, final DetectionBatch results) {
+        toRgb(bitmap, mRgb);
+        recognizeImage(mRgb, results);
+    }
+
+    @Override
+    public void recognizeImage(final ByteBuffer rgb, final DetectionBatch results) {
+        if (mInput == null) {
+            mInput = new Mat(mInputSize, mInputSize, CvType.CV_8UC3);
+            mInputBytes = new byte[mInputSize * mInputSize * 3];
+        }
+        rgb.get(mInputBytes);
+        mInput.put(0, 0, mInputBytes);
+        recognizeImage(mInput, results);
+    }
+
+    @Override
+    public void recognizeFrame(final ByteBuffer frame, final int width, final int height, final int format,
+                               final DetectionBatch results) {
+        if (mFrameBuffer == null) {
+            mFrameBuffer = ByteBuffer.allocateDirect(mInputSize * mInputSize * 3);
+        }
+        FrameConverter.toRgb(frame, width, height, format, mFrameBuffer, mInputSize, mInputSize);
+        mFrameBuffer.clear();
+        recognizeImage(mFrameBuffer, results);
+    }
+
+    @Override
+    public List<List<Recognition>> recognizeImages(final List<Bitmap> bitmaps) {
+        final List<DetectionBatch> batches = new ArrayList<>(bitmaps.size());
+        for (int i = 0; i < bitmaps.size(); i++) {
+            batches.add(new DetectionBatch(MAX_RESULTS));
+        }
+        recognizeImages(bitmaps, batches);
+        final List<List<Recognition>> results = new ArrayList<>(bitmaps.size());
+        for (DetectionBatch batch : batches) {
+            results.add(new ArrayList<>(batch.asList()));
+        }
+        return results;
+    }
+
+    @Override
+    public void recognizeImages(final List<Bitmap> bitmaps, final List<DetectionBatch> results) {
+        if (bitmaps.isEmpty()) {
+            return;
+        }
+        final List<Mat> images = new ArrayList<>(bitmaps.size());
+        for (Bitmap bitmap : bitmaps) {
+            Mat rgb = new Mat();
+            toRgb(bitmap, rgb);
+            images.add(rgb);
+        }
+        final Mat blob = Dnn.blobFromImages(images, SCALE_FACTOR, mBlobSize, MEAN, false, false);
+        final Mat output = forward(blob);
+        blob.release();
+        for (int b = 0; b < images.size(); b++) {
+            collect(output, b, images.get(b).cols(), images.get(b).rows(), results.get(b));
+            images.get(b).release();
+        }
+        output.release();
+    }
+
+    private Mat forward(Mat blob) {
+        final long startTime = SystemClock.uptimeMillis();
+        mNet.setInput(blob);
+        final Mat output = mNet.forward();
+        mLastInferenceTime = SystemClock.uptimeMillis() - startTime;
+        if (mFirstInferenceTime < 0) {
+            mFirstInferenceTime = mLastInferenceTime;
+            Log.d(TAG, mFirstInferenceTime + " ms taken by the first inference");
+        }
+        return output;
+    }
+
+    private void toRgb(Bitmap bitmap, Mat rgb) {
+        Utils.bitmapToMat(bitmap, mRgba);
+        Imgproc.cvtColor(mRgba, rgb, Imgproc.COLOR_RGBA2RGB);
+    }
+
+    /**
+     * Keeps the most confident detections of image {@code image} of a detection_out blob, scaled
+     * to a {@code width * height} image.
+     */
+    private void collect(Mat output, int image, int width, int height, DetectionBatch results) {
+        results.clear();
+        results.setLabels(mLabelTable);
+        final int count = (int) (output.total() / DETECTION_SIZE);
+        if (count == 0) {
+            return;
+        }
+        if (mOutput.length < count * DETECTION_SIZE) {
+            mOutput = new float[count * DETECTION_SIZE];
+        }
+        final Mat rows = output.reshape(1, count);
+        rows.get(0, 0, mOutput);
+        for (int i = 0; i < count; i++) {
+            final int offset = i * DETECTION_SIZE;
+            if ((int) mOutput[offset] != image) {
+                continue;
+            }
+            final int classId = (int) mOutput[offset + 1];
+            results.offer(
+                    i,
+                    classId,
+                    mOutput[offset + 2],
+                    mOutput[offset + 3] * width,
+                    mOutput[offset + 4] * height,
+                    mOutput[offset + 5] * width,
+                    mOutput[offset + 6] * height);
+        }
+        if (mLogStats) {
+            Log.d(TAG, getStatString());
+        }
+    }
+
+    @Override
+    public long getLoadTime() {
+        return mLoadTime;
+    }
+
+    @Override
+    public long getFirstInferenceTime() {
+        return mFirstInferenceTime;
+    }
+
+    @Override
+    public long getLastInferenceTime() {
+        return mLastInferenceTime;
+    }
+
+    @Override
+    public void enableStatLogging(final boolean logStats) {
+        mLogStats = logStats;
+    }
+
+    @Override
+    public String getStatString() {
+        final MatOfDouble timings = new MatOfDouble();
+        final long ticks = mNet.getPerfProfile(timings);
+        timings.release();
+        return String.format(Locale.US, "%.1f ms taken by the last inference", ticks * 1000 / Core.getTickFrequency());
+    }
+
+    @Override
+    public void close() {
+        mRgba.release();
+        mRgb.release();
+        if (mInput != null) {
+            mInput.release();
+        }
+        mNet = null;
+    }
+}
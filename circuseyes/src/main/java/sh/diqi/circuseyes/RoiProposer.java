@@ -0,0 +1,131 @@
+package sh.diqi.circuseyes;
+
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Proposes the regions of a frame holding products in front of a plain coloured background.
+ * <p>
+ * Pixels outside the HSV range of the background are segmented on a 4 to 8 times downscaled copy
+ * of the frame, dilated so the pieces of a product join, and the bounding boxes of their
+ * contours are grown and merged with a {@link BoxMerger}. Mats are kept between calls, so an
+ * instance must not be used by several threads at once.
+ */
+class RoiProposer {
+
+    private static final double THRESHOLD_THRESH = 128;
+    private static final double THRESHOLD_MAXVAL = 255;
+    private static final int THRESHOLD_TYPE = Imgproc.THRESH_BINARY_INV;
+    private static final double KERNEL_WIDTH = 8;
+    private static final double KERNEL_HEIGHT = 3;
+    private static final int DILATE_ITERATIONS = 2;
+    // Frame pixels each contour box grows by before merging.
+    private static final int DILATE_SIZE = 256;
+    // Longer side of the downscaled frame, within the scale bounds.
+    private static final int MASK_SIZE = 320;
+    private static final int MINIMUM_SCALE = 4;
+    private static final int MAXIMUM_SCALE = 8;
+    // Contours smaller than this in mask pixels are noise.
+    private static final double MINIMUM_CONTOUR_AREA = 4;
+
+    private final Mat mRgba = new Mat();
+    private final Mat mSmall = new Mat();
+    private final Mat mRgb = new Mat();
+    private final Mat mHsv = new Mat();
+    private final Mat mMask = new Mat();
+    private final Mat mHierarchy = new Mat();
+    private final Mat mKernel = Imgproc.getStructuringElement(Imgproc.CV_SHAPE_ELLIPSE, new Size(KERNEL_WIDTH, KERNEL_HEIGHT));
+    private final Point mAnchor = new Point(-1, -1);
+    private final List<MatOfPoint> mContours = new ArrayList<>();
+    private final BoxMerger mBoxMerger = new BoxMerger();
+
+    /**
+     * Returns at most {@code maximumCount} regions of at least {@code minimumArea} frame pixels,
+     * by descending size of the product they were grown from, or none if the frame only shows
+     * background.
+     */
+    public List<RectF> propose(Bitmap bitmap, FMCGDetector.BG color, float minimumArea, int maximumCount) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int scale = Math.min(Math.max(Math.max(width, height) / MASK_SIZE, MINIMUM_SCALE), MAXIMUM_SCALE);
+        Utils.bitmapToMat(bitmap, mRgba);
+        Imgproc.resize(mRgba, mSmall, new Size(Math.max(width / scale, 1), Math.max(height / scale, 1)), 0, 0, Imgproc.INTER_AREA);
+        Imgproc.cvtColor(mSmall, mRgb, Imgproc.COLOR_RGBA2RGB);
+        Imgproc.cvtColor(mRgb, mHsv, Imgproc.COLOR_RGB2HSV);
+        final Scalar[] bounding = getBounding(color);
+        Core.inRange(mHsv, bounding[0], bounding[1], mMask);
+        Imgproc.threshold(mMask, mMask, THRESHOLD_THRESH, THRESHOLD_MAXVAL, THRESHOLD_TYPE);
+        Imgproc.dilate(mMask, mMask, mKernel, mAnchor, DILATE_ITERATIONS);
+        mContours.clear();
+        Imgproc.findContours(mMask, mContours, mHierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
+
+        // Merged by descending contour area, as the largest products seed the regions.
+        mBoxMerger.clear();
+        final float scaleX = width / (float) mMask.cols();
+        final float scaleY = height / (float) mMask.rows();
+        for (MatOfPoint contour : mContours) {
+            final double area = Imgproc.contourArea(contour);
+            if (area >= MINIMUM_CONTOUR_AREA) {
+                final Rect rect = Imgproc.boundingRect(contour);
+                mBoxMerger.add(Math.max(rect.x * scaleX - DILATE_SIZE, 0),
+                        Math.max(rect.y * scaleY - DILATE_SIZE, 0),
+                        Math.min((rect.x + rect.width) * scaleX + DILATE_SIZE, width),
+                        Math.min((rect.y + rect.height) * scaleY + DILATE_SIZE, height),
+                        (float) area, 0);
+            }
+            contour.release();
+        }
+        mContours.clear();
+        final int count = mBoxMerger.merge();
+
+        final List<RectF> rois = new ArrayList<>();
+        for (int i = 0; i < count && rois.size() < maximumCount; i++) {
+            final int box = mBoxMerger.getKept(i);
+            final RectF roi = new RectF(mBoxMerger.getLeft(box), mBoxMerger.getTop(box),
+                    mBoxMerger.getRight(box), mBoxMerger.getBottom(box));
+            if (roi.width() * roi.height() >= minimumArea) {
+                rois.add(roi);
+            }
+        }
+        return rois;
+    }
+
+    public void release() {
+        mRgba.release();
+        mSmall.release();
+        mRgb.release();
+        mHsv.release();
+        mMask.release();
+        mHierarchy.release();
+        mKernel.release();
+    }
+
+    private static Scalar[] getBounding(final FMCGDetector.BG color) {
+        switch (color) {
+            case BLACK:
+                return new Scalar[]{new Scalar(0, 0, 0), new Scalar(180, 255, 220)};
+            case WHITE:
+                return new Scalar[]{new Scalar(0, 0, 46), new Scalar(180, 43, 255)};
+            case BLUE:
+                return new Scalar[]{new Scalar(100, 43, 46), new Scalar(124, 255, 255)};
+            case RED:
+                return new Scalar[]{new Scalar(0, 43, 46), new Scalar(10, 255, 255)};
+            case GREEN:
+            default:
+                return new Scalar[]{new Scalar(35, 43, 46), new Scalar(99, 255, 255)};
+        }
+    }
+}
@@ -17,7 +17,7 @@ package sh.diqi.circuseyes;
 
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
-import android.graphics.RectF;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.util.Log;
 
@@ -26,23 +26,28 @@ import org.tensorflow.Operation;
 import org.tensorflow.contrib.android.TensorFlowInferenceInterface;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Collections;
 import java.util.List;
-import java.util.PriorityQueue;
 import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Wrapper for frozen detection models trained using the Tensorflow Object Detection API:
  * github.com/tensorflow/models/tree/master/research/object_detection
  */
 public class TensorFlowObjectDetectionAPIModel implements Classifier {
+  private static final String TAG = TensorFlowObjectDetectionAPIModel.class.getSimpleName();
 
   // Only return this many results.
   private static final int MAX_RESULTS = 100;
+  // Feed at most this many images per run, larger batches are split.
+  private static final int MAX_BATCH_SIZE = 8;
 
   // Config values.
   private String inputName;
@@ -50,8 +55,13 @@ public class TensorFlowObjectDetectionAPIModel implements Classifier {
 
   // Pre-allocated buffers.
   private Vector<String> labels = new Vector<String>();
+  // Labels by class id, shared with the batches filled.
+  private String[] labelTable;
   private int[] intValues;
   private byte[] byteValues;
+  private ByteBuffer inputBuffer;
+  private ByteBuffer frameBuffer;
+  private long[][] inputShapes;
   private float[] outputLocations;
   private float[] outputScores;
   private float[] outputClasses;
@@ -62,6 +72,12 @@ public class TensorFlowObjectDetectionAPIModel implements Classifier {
 
   private TensorFlowInferenceInterface inferenceInterface;
 
+  // Cold start costs, in ms, -1 until known.
+  private long loadTime = -1;
+  private volatile long firstInferenceTime = -1;
+  private volatile long lastInferenceTime = -1;
+  private volatile CountDownLatch warmUpLatch;
+
   /**
    * Initializes a native TensorFlow session for classifying images.
    *
@@ -74,6 +90,29 @@ public class TensorFlowObjectDetectionAPIModel implements Classifier {
       final String modelFilename,
       final String labelFilename,
       final int inputSize) throws IOException {
+    return create(assetManager, null, modelFilename, labelFilename, inputSize, false);
+  }
+
+  /**
+   * Initializes a native TensorFlow session for classifying images, loading the model from a
+   * memory mapping.
+   *
+   * @param assetManager The asset manager to be used to load assets.
+   * @param cacheDir The directory a compressed model asset is extracted to so that it can be
+   *     mapped, or null to stream it.
+   * @param modelFilename The filepath of the model GraphDef protocol buffer.
+   * @param labelFilename The filepath of label file for classes.
+   * @param warmUp Whether to run a dummy inference in the background right away, so that the
+   *     first recognition does not pay for kernel initialization. Recognitions wait for it.
+   */
+  public static Classifier create(
+      final AssetManager assetManager,
+      final File cacheDir,
+      final String modelFilename,
+      final String labelFilename,
+      final int inputSize,
+      final boolean warmUp) throws IOException {
+    final long startTime = SystemClock.uptimeMillis();
     final TensorFlowObjectDetectionAPIModel d = new TensorFlowObjectDetectionAPIModel();
 
     InputStream labelsInput = null;
@@ -86,9 +125,13 @@ public class TensorFlowObjectDetectionAPIModel implements Classifier {
       d.labels.add(line);
     }
     br.close();
+    d.labelTable = d.labels.toArray(new String[d.labels.size()]);
 
 
-    d.inferenceInterface = new TensorFlowInferenceInterface(assetManager, modelFilename);
+    final Graph graph = ModelLoader.load(assetManager, cacheDir, modelFilename);
+    d.inferenceInterface = graph != null
+        ? new TensorFlowInferenceInterface(graph)
+        : new TensorFlowInferenceInterface(assetManager, modelFilename);
 
     final Graph g = d.inferenceInterface.graph();
 
@@ -121,37 +164,193 @@ public class TensorFlowObjectDetectionAPIModel implements Classifier {
     d.outputNames = new String[] {"detection_boxes", "detection_scores",
                                   "detection_classes", "num_detections"};
     d.intValues = new int[d.inputSize * d.inputSize];
-    d.byteValues = new byte[d.inputSize * d.inputSize * 3];
-    d.outputScores = new float[MAX_RESULTS];
-    d.outputLocations = new float[MAX_RESULTS * 4];
-    d.outputClasses = new float[MAX_RESULTS];
-    d.outputNumDetections = new float[1];
+    d.byteValues = new byte[MAX_BATCH_SIZE * d.inputSize * d.inputSize * 3];
+    d.outputScores = new float[MAX_BATCH_SIZE * MAX_RESULTS];
+    d.outputLocations = new float[MAX_BATCH_SIZE * MAX_RESULTS * 4];
+    d.outputClasses = new float[MAX_BATCH_SIZE * MAX_RESULTS];
+    d.outputNumDetections = new float[MAX_BATCH_SIZE];
+    d.inputBuffer = ByteBuffer.wrap(d.byteValues);
+    d.inputShapes = new long[MAX_BATCH_SIZE + 1][];
+    for (int n = 1; n <= MAX_BATCH_SIZE; ++n) {
+      d.inputShapes[n] = new long[] {n, d.inputSize, d.inputSize, 3};
+    }
+
+    d.loadTime = SystemClock.uptimeMillis() - startTime;
+    Log.d(TAG, d.loadTime + " ms taken to load " + modelFilename);
+    if (warmUp) {
+      d.warmUp();
+    }
     return d;
   }
 
+  /**
+   * Time taken by {@link #create} to load the model, in ms.
+   */
+  @Override
+  public long getLoadTime() {
+    return loadTime;
+  }
+
+  @Override
+  public long getFirstInferenceTime() {
+    return firstInferenceTime;
+  }
+
+  @Override
+  public long getLastInferenceTime() {
+    return lastInferenceTime;
+  }
+
+  private void warmUp() {
+    final CountDownLatch latch = new CountDownLatch(1);
+    warmUpLatch = latch;
+    final Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          runSession(ByteBuffer.allocateDirect(intValues.length * 3), 1);
+        } catch (RuntimeException e) {
+          Log.w(TAG, "warm-up failed", e);
+        } finally {
+          warmUpLatch = null;
+          latch.countDown();
+        }
+      }
+    }, TAG + "-warmup");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Blocks until the warm-up inference, if any, is done, as the session is not thread safe.
+   */
+  private void awaitWarmUp() {
+    final CountDownLatch latch = warmUpLatch;
+    if (latch == null) {
+      return;
+    }
+    boolean interrupted = false;
+    while (latch.getCount() > 0) {
+      try {
+        latch.await();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
   private TensorFlowObjectDetectionAPIModel() {}
 
   @Override
   public List<Recognition> recognizeImage(final Bitmap bitmap) {
+    return recognizeImages(Collections.singletonList(bitmap)).get(0);
+  }
+
+  @Override
+  public void recognizeImage(final Bitmap bitmap, final DetectionBatch results) {
     // Log this method so that it can be analyzed with systrace.
     Trace.beginSection("recognizeImage");
+    preprocess(bitmap, 0);
+    inputBuffer.clear();
+    inputBuffer.limit(intValues.length * 3);
+    runInference(inputBuffer, 1);
+    select(0, results);
+    Trace.endSection(); // "recognizeImage"
+  }
+
+  @Override
+  public void recognizeImage(final ByteBuffer rgb, final DetectionBatch results) {
+    Trace.beginSection("recognizeImage");
+    runInference(rgb, 1);
+    select(0, results);
+    Trace.endSection(); // "recognizeImage"
+  }
+
+  @Override
+  public void recognizeFrame(
+      final ByteBuffer frame,
+      final int width,
+      final int height,
+      final int format,
+      final DetectionBatch results) {
+    Trace.beginSection("recognizeFrame");
+    if (frameBuffer == null) {
+      frameBuffer = ByteBuffer.allocateDirect(intValues.length * 3);
+    }
+    Trace.beginSection("convertFrame");
+    FrameConverter.toRgb(frame, width, height, format, frameBuffer, inputSize, inputSize);
+    Trace.endSection();
+    frameBuffer.clear();
+    recognizeImage(frameBuffer, results);
+    Trace.endSection(); // "recognizeFrame"
+  }
+
+  @Override
+  public List<List<Recognition>> recognizeImages(final List<Bitmap> bitmaps) {
+    final List<DetectionBatch> batches = new ArrayList<>(bitmaps.size());
+    for (int i = 0; i < bitmaps.size(); ++i) {
+      batches.add(new DetectionBatch(MAX_RESULTS));
+    }
+    recognizeImages(bitmaps, batches);
+    final List<List<Recognition>> results = new ArrayList<>(bitmaps.size());
+    for (DetectionBatch batch : batches) {
+      results.add(new ArrayList<>(batch.asList()));
+    }
+    return results;
+  }
+
+  @Override
+  public void recognizeImages(final List<Bitmap> bitmaps, final List<DetectionBatch> results) {
+    // Log this method so that it can be analyzed with systrace.
+    Trace.beginSection("recognizeImages");
+    for (int from = 0; from < bitmaps.size(); from += MAX_BATCH_SIZE) {
+      final int batchSize = Math.min(MAX_BATCH_SIZE, bitmaps.size() - from);
+      for (int b = 0; b < batchSize; ++b) {
+        preprocess(bitmaps.get(from + b), b);
+      }
+      inputBuffer.clear();
+      inputBuffer.limit(batchSize * intValues.length * 3);
+      runInference(inputBuffer, batchSize);
+      for (int b = 0; b < batchSize; ++b) {
+        select(b, results.get(from + b));
+      }
+    }
+    Trace.endSection(); // "recognizeImages"
+  }
 
+  /**
+   * Unpacks the ARGB pixels of the bitmap as 0-255 RGB bytes of image {@code b} of the batch.
+   */
+  private void preprocess(final Bitmap bitmap, final int b) {
     Trace.beginSection("preprocessBitmap");
-    // Preprocess the image data from 0-255 int to normalized float based
-    // on the provided parameters.
-    Log.d(getClass().getSimpleName(), intValues.length + " =? " + bitmap.getWidth() + " * " + bitmap.getHeight());
     bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
-
+    final int offset = b * intValues.length * 3;
     for (int i = 0; i < intValues.length; ++i) {
-      byteValues[i * 3 + 2] = (byte) (intValues[i] & 0xFF);
-      byteValues[i * 3 + 1] = (byte) ((intValues[i] >> 8) & 0xFF);
-      byteValues[i * 3] = (byte) ((intValues[i] >> 16) & 0xFF);
+      byteValues[offset + i * 3 + 2] = (byte) (intValues[i] & 0xFF);
+      byteValues[offset + i * 3 + 1] = (byte) ((intValues[i] >> 8) & 0xFF);
+      byteValues[offset + i * 3] = (byte) ((intValues[i] >> 16) & 0xFF);
     }
     Trace.endSection(); // preprocessBitmap
+  }
 
-    // Copy the input data into TensorFlow.
+  /**
+   * Runs {@code batchSize} images of packed RGB bytes, the remaining content of {@code input},
+   * through the graph and fetches the outputs into the pre-allocated arrays.
+   */
+  private void runInference(final ByteBuffer input, final int batchSize) {
+    awaitWarmUp();
+    runSession(input, batchSize);
+  }
+
+  private void runSession(final ByteBuffer input, final int batchSize) {
+    final long startTime = SystemClock.uptimeMillis();
+
+    // Copy the input data into TensorFlow, this consumes the buffer.
     Trace.beginSection("feed");
-    inferenceInterface.feed(inputName, byteValues, 1, inputSize, inputSize, 3);
+    inferenceInterface.feed(inputName, input, inputShapes[batchSize]);
     Trace.endSection();
 
     // Run the inference call.
@@ -161,46 +360,39 @@ public class TensorFlowObjectDetectionAPIModel implements Classifier {
 
     // Copy the output Tensor back into the output array.
     Trace.beginSection("fetch");
-    outputLocations = new float[MAX_RESULTS * 4];
-    outputScores = new float[MAX_RESULTS];
-    outputClasses = new float[MAX_RESULTS];
-    outputNumDetections = new float[1];
     inferenceInterface.fetch(outputNames[0], outputLocations);
     inferenceInterface.fetch(outputNames[1], outputScores);
     inferenceInterface.fetch(outputNames[2], outputClasses);
     inferenceInterface.fetch(outputNames[3], outputNumDetections);
     Trace.endSection();
 
-    // Find the best detections.
-    final PriorityQueue<Recognition> pq =
-        new PriorityQueue<Recognition>(
-            1,
-            new Comparator<Recognition>() {
-              @Override
-              public int compare(final Recognition lhs, final Recognition rhs) {
-                // Intentionally reversed to put high confidence at the head of the queue.
-                return Float.compare(rhs.getConfidence(), lhs.getConfidence());
-              }
-            });
-
-    // Scale them back to the input size.
-    for (int i = 0; i < outputScores.length; ++i) {
-      final RectF detection =
-          new RectF(
-              outputLocations[4 * i + 1] * inputSize,
-              outputLocations[4 * i] * inputSize,
-              outputLocations[4 * i + 3] * inputSize,
-              outputLocations[4 * i + 2] * inputSize);
-      pq.add(
-          new Recognition("" + i, labels.get((int) outputClasses[i]), outputScores[i], detection));
-    }
-
-    final ArrayList<Recognition> recognitions = new ArrayList<>();
-    for (int i = 0; i < Math.min(pq.size(), MAX_RESULTS); ++i) {
-      recognitions.add(pq.poll());
+    lastInferenceTime = SystemClock.uptimeMillis() - startTime;
+    if (firstInferenceTime < 0) {
+      firstInferenceTime = lastInferenceTime;
+      Log.d(TAG, firstInferenceTime + " ms taken by the first inference");
+    }
+  }
+
+  /**
+   * Keeps the most confident of the first {@code num_detections} detections of image {@code b},
+   * scaled back to the input size, in {@code results}.
+   */
+  private void select(final int b, final DetectionBatch results) {
+    results.clear();
+    results.setLabels(labelTable);
+    final int offset = b * MAX_RESULTS;
+    final int count = Math.min((int) outputNumDetections[b], MAX_RESULTS);
+    for (int i = offset; i < offset + count; ++i) {
+      final int classId = (int) outputClasses[i];
+      results.offer(
+          i - offset,
+          classId,
+          outputScores[i],
+          outputLocations[4 * i + 1] * inputSize,
+          outputLocations[4 * i] * inputSize,
+          outputLocations[4 * i + 3] * inputSize,
+          outputLocations[4 * i + 2] * inputSize);
     }
-    Trace.endSection(); // "recognizeImage"
-    return recognitions;
   }
 
   @Override
@@ -215,6 +407,7 @@ public class TensorFlowObjectDetectionAPIModel implements Classifier {
 
   @Override
   public void close() {
+    awaitWarmUp();
     inferenceInterface.close();
   }
 }
@@ -0,0 +1,531 @@
+package sh.diqi.circuseyes;
+
+import android.util.Log;
+
+import org.opencv.core.Mat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Vocabulary tree over binary descriptors (Nistér and Stewénius, "Scalable Recognition with a
+ * Vocabulary Tree"), clustered with k-majority so that centers stay binary and distances are
+ * Hamming distances.
+ * <p>
+ * Leaves are visual words. Every face is described by the TF-IDF weighted, L1 normalized
+ * histogram of the words of its descriptors, stored in inverted files so a query only touches
+ * the faces that share words with it. Faces are scored by the L1 similarity of the histograms.
+ * <p>
+ * The vocabulary is clustered once and persisted with {@link #write(File, long)}. Trees for
+ * later catalogs reuse it through {@link #read(File, long, FeatureCatalog)} and
+ * {@link #update(FeatureCatalog)}, which only quantize descriptors into the existing leaves.
+ */
+class VocabularyTree implements FaceRanker {
+
+    private static final String TAG = VocabularyTree.class.getSimpleName();
+
+    private static final int DEFAULT_BRANCHING = 10;
+    private static final int DEFAULT_DEPTH = 4;
+    private static final int ITERATIONS = 6;
+    private static final long SEED = 0x7e5eL;
+
+    private static final int MAGIC = 0x43455654; // "CEVT"
+    private static final int FORMAT_VERSION = 1;
+
+    private final int mBytes;
+    private final int mWords;
+    private final int mFaceCount;
+
+    // Nodes, the children of a node are contiguous. Shared by the trees updated from this one.
+    private final int mNodeCount;
+    private final long[] mCenters;
+    private final int[] mFirstChild;
+    private final int[] mChildCount;
+    private final int[] mWordOf;
+    private final int mWordCount;
+
+    // Word of every quantized descriptor row of the catalog, -1 for rows no face owns.
+    private final long mGeneration;
+    private final int[] mWordOfRow;
+
+    // Inverted files, postings of word w are mPostingStarts[w] to mPostingStarts[w + 1] - 1.
+    private float[] mIdf;
+    private int[] mPostingStarts;
+    private int[] mPostingFaces;
+    private float[] mPostingWeights;
+
+    private VocabularyTree(int bytes, int faceCount, int nodeCount, long[] centers, int[] firstChild,
+                           int[] childCount, int[] wordOf, int wordCount, long generation, int[] wordOfRow) {
+        mBytes = bytes;
+        mWords = BinaryDescriptors.words(bytes);
+        mFaceCount = faceCount;
+        mNodeCount = nodeCount;
+        mCenters = centers;
+        mFirstChild = firstChild;
+        mChildCount = childCount;
+        mWordOf = wordOf;
+        mWordCount = wordCount;
+        mGeneration = generation;
+        mWordOfRow = wordOfRow;
+    }
+
+    public static VocabularyTree build(FeatureCatalog catalog) {
+        return build(catalog, DEFAULT_BRANCHING, DEFAULT_DEPTH);
+    }
+
+    public static VocabularyTree build(FeatureCatalog catalog, int branching, int depth) {
+        return build(catalog.getDescriptorData(), catalog.getDescriptorBytes(), catalog.getRowCount(),
+                catalog.getDescriptorStarts(), catalog.getDescriptorEnds(), catalog.getGeneration(), branching, depth);
+    }
+
+    /**
+     * Clusters a vocabulary over {@code rows} descriptors of {@code bytes} bytes stored row after
+     * row in a little endian buffer, face {@code f} owning rows {@code descriptorStarts[f]} to
+     * {@code descriptorEnds[f] - 1}, and indexes the faces. Rows no face owns are left out.
+     */
+    static VocabularyTree build(ByteBuffer descriptors, int bytes, int rows, int[] descriptorStarts, int[] descriptorEnds,
+                                long generation, int branching, int depth) {
+        final int words = BinaryDescriptors.words(bytes);
+        int total = 0;
+        for (int face = 0; face < descriptorStarts.length; face++) {
+            total += descriptorEnds[face] - descriptorStarts[face];
+        }
+        final long[] codes = new long[total * words];
+        for (int face = 0, i = 0; face < descriptorStarts.length; face++) {
+            for (int row = descriptorStarts[face]; row < descriptorEnds[face]; row++, i++) {
+                BinaryDescriptors.pack(descriptors, row * bytes, bytes, codes, i * words);
+            }
+        }
+
+        int maxNodes = 1;
+        for (int level = 0, width = 1; level < depth; level++) {
+            width *= branching;
+            maxNodes += width;
+        }
+        Clustering clustering = new Clustering(branching, words, maxNodes);
+        int[] ids = new int[total];
+        for (int i = 0; i < total; i++) {
+            ids[i] = i;
+        }
+        clustering.split(0, codes, ids, 0, total, depth, new Random(SEED));
+
+        final int nodes = clustering.nodeCount;
+        VocabularyTree tree = new VocabularyTree(bytes, descriptorStarts.length, nodes,
+                Arrays.copyOf(clustering.centers, nodes * words), Arrays.copyOf(clustering.firstChild, nodes),
+                Arrays.copyOf(clustering.childCount, nodes), Arrays.copyOf(clustering.wordOf, nodes),
+                clustering.wordCount, generation, newWordOfRow(rows));
+        tree.quantizeRows(descriptors, descriptorStarts, descriptorEnds, 0);
+        tree.buildInvertedFiles(descriptorStarts, descriptorEnds);
+        return tree;
+    }
+
+    /**
+     * Returns a tree with the vocabulary of this one over {@code catalog}. If the catalog was
+     * derived from the one this tree indexes, only its added rows are quantized, otherwise all
+     * of them are, but no clustering is done either way.
+     */
+    public VocabularyTree update(FeatureCatalog catalog) {
+        return update(catalog.getDescriptorData(), catalog.getDescriptorBytes(), catalog.getRowCount(),
+                catalog.getDescriptorStarts(), catalog.getDescriptorEnds(), catalog.getGeneration());
+    }
+
+    VocabularyTree update(ByteBuffer descriptors, int bytes, int rows, int[] descriptorStarts, int[] descriptorEnds,
+                          long generation) {
+        if (bytes != mBytes) {
+            throw new IllegalArgumentException("descriptors of " + bytes + " bytes do not match the vocabulary");
+        }
+        final int[] wordOfRow = newWordOfRow(rows);
+        int firstRow = 0;
+        if (generation == mGeneration && rows >= mWordOfRow.length) {
+            // Rows of the same generation are the same descriptors, their words are kept.
+            System.arraycopy(mWordOfRow, 0, wordOfRow, 0, mWordOfRow.length);
+            firstRow = mWordOfRow.length;
+        }
+        VocabularyTree tree = new VocabularyTree(mBytes, descriptorStarts.length, mNodeCount, mCenters, mFirstChild,
+                mChildCount, mWordOf, mWordCount, generation, wordOfRow);
+        tree.quantizeRows(descriptors, descriptorStarts, descriptorEnds, firstRow);
+        tree.buildInvertedFiles(descriptorStarts, descriptorEnds);
+        return tree;
+    }
+
+    /**
+     * Maps a vocabulary written by {@link #write(File, long)} and indexes {@code catalog} with
+     * it, returns null if there is none for this asset version and descriptor size.
+     */
+    public static VocabularyTree read(File file, long assetVersion, FeatureCatalog catalog) {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            buffer.order(ByteOrder.nativeOrder());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION || buffer.getLong() != assetVersion ||
+                    buffer.getInt() != catalog.getDescriptorBytes()) {
+                Log.d(TAG, file + " is stale");
+                return null;
+            }
+            final int nodes = buffer.getInt();
+            final int wordCount = buffer.getInt();
+            final int[] firstChild = new int[nodes];
+            final int[] childCount = new int[nodes];
+            final int[] wordOf = new int[nodes];
+            IntBuffer ints = buffer.asIntBuffer();
+            ints.get(firstChild);
+            ints.get(childCount);
+            ints.get(wordOf);
+            buffer.position(buffer.position() + ints.position() * 4);
+            final long[] centers = new long[nodes * BinaryDescriptors.words(catalog.getDescriptorBytes())];
+            buffer.asLongBuffer().get(centers);
+            VocabularyTree vocabulary = new VocabularyTree(catalog.getDescriptorBytes(), 0, nodes, centers,
+                    firstChild, childCount, wordOf, wordCount, 0, new int[0]);
+            return vocabulary.update(catalog.getDescriptorData(), catalog.getDescriptorBytes(), catalog.getRowCount(),
+                    catalog.getDescriptorStarts(), catalog.getDescriptorEnds(), catalog.getGeneration());
+        } catch (Exception e) {
+            Log.w(TAG, "failed to open " + file, e);
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the vocabulary, not the faces it indexes, to a temporary file and moves it over
+     * {@code file}.
+     */
+    public void write(File file, long assetVersion) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * 2 + 8 + 4 * 3 + mNodeCount * (4 * 3 + mWords * 8))
+                .order(ByteOrder.nativeOrder());
+        buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(assetVersion).putInt(mBytes)
+                .putInt(mNodeCount).putInt(mWordCount);
+        IntBuffer ints = buffer.asIntBuffer();
+        ints.put(mFirstChild, 0, mNodeCount).put(mChildCount, 0, mNodeCount).put(mWordOf, 0, mNodeCount);
+        buffer.position(buffer.position() + ints.position() * 4);
+        buffer.asLongBuffer().put(mCenters, 0, mNodeCount * mWords);
+        buffer.clear();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.setLength(buffer.capacity());
+            raf.getChannel().write(buffer, 0);
+            raf.getChannel().force(false);
+        } finally {
+            raf.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("failed to move " + tmp + " to " + file);
+        }
+    }
+
+    @Override
+    public int getFaceCount() {
+        return mFaceCount;
+    }
+
+    public int getWordCount() {
+        return mWordCount;
+    }
+
+    private static int[] newWordOfRow(int rows) {
+        int[] wordOfRow = new int[rows];
+        Arrays.fill(wordOfRow, -1);
+        return wordOfRow;
+    }
+
+    /**
+     * Nodes of the vocabulary being clustered.
+     */
+    private static final class Clustering {
+        final int branching;
+        final int words;
+        final long[] centers;
+        final int[] firstChild;
+        final int[] childCount;
+        final int[] wordOf;
+        int nodeCount = 1;
+        int wordCount;
+
+        Clustering(int branching, int words, int maxNodes) {
+            this.branching = branching;
+            this.words = words;
+            centers = new long[maxNodes * words];
+            firstChild = new int[maxNodes];
+            childCount = new int[maxNodes];
+            wordOf = new int[maxNodes];
+        }
+
+        void split(int node, long[] codes, int[] ids, int from, int to, int depth, Random random) {
+            final int count = to - from;
+            if (depth == 0 || count <= branching) {
+                firstChild[node] = -1;
+                wordOf[node] = wordCount++;
+                return;
+            }
+            final int k = branching;
+            final long[] clusterCenters = new long[k * words];
+            final int[] assignment = kMajority(codes, ids, from, to, k, clusterCenters, random);
+
+            // Counting sort of the ids by cluster so every child owns a contiguous range.
+            int[] starts = new int[k + 1];
+            for (int i = 0; i < count; i++) {
+                starts[assignment[i] + 1]++;
+            }
+            for (int c = 0; c < k; c++) {
+                starts[c + 1] += starts[c];
+            }
+            int[] fill = Arrays.copyOf(starts, k);
+            int[] sorted = new int[count];
+            for (int i = 0; i < count; i++) {
+                sorted[fill[assignment[i]]++] = ids[from + i];
+            }
+            System.arraycopy(sorted, 0, ids, from, count);
+
+            final int first = nodeCount;
+            nodeCount += k;
+            firstChild[node] = first;
+            childCount[node] = k;
+            System.arraycopy(clusterCenters, 0, centers, first * words, k * words);
+            for (int c = 0; c < k; c++) {
+                split(first + c, codes, ids, from + starts[c], from + starts[c + 1], depth - 1, random);
+            }
+        }
+
+        /**
+         * Clusters {@code ids[from, to)} into {@code k} binary centers, every center bit being the
+         * majority of that bit over the descriptors assigned to it.
+         */
+        private int[] kMajority(long[] codes, int[] ids, int from, int to, int k, long[] centers, Random random) {
+            final int count = to - from;
+            final int bits = words * 64;
+            int[] seeds = Arrays.copyOfRange(ids, from, to);
+            for (int c = 0; c < k; c++) {
+                int pick = c + random.nextInt(count - c);
+                int tmp = seeds[c];
+                seeds[c] = seeds[pick];
+                seeds[pick] = tmp;
+                System.arraycopy(codes, seeds[c] * words, centers, c * words, words);
+            }
+            int[] assignment = new int[count];
+            Arrays.fill(assignment, -1);
+            int[] sizes = new int[k];
+            int[] ones = new int[k * bits];
+            for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+                boolean changed = false;
+                for (int i = 0; i < count; i++) {
+                    int best = nearest(codes, ids[from + i] * words, centers, 0, k, words);
+                    if (best != assignment[i]) {
+                        assignment[i] = best;
+                        changed = true;
+                    }
+                }
+                if (!changed || iteration == ITERATIONS - 1) {
+                    break;
+                }
+                Arrays.fill(sizes, 0);
+                Arrays.fill(ones, 0);
+                for (int i = 0; i < count; i++) {
+                    int c = assignment[i];
+                    sizes[c]++;
+                    int offset = ids[from + i] * words;
+                    for (int w = 0; w < words; w++) {
+                        long word = codes[offset + w];
+                        while (word != 0) {
+                            ones[c * bits + w * 64 + Long.numberOfTrailingZeros(word)]++;
+                            word &= word - 1;
+                        }
+                    }
+                }
+                for (int c = 0; c < k; c++) {
+                    if (sizes[c] == 0) {
+                        continue;
+                    }
+                    for (int w = 0; w < words; w++) {
+                        long word = 0;
+                        for (int b = 0; b < 64; b++) {
+                            if (ones[c * bits + w * 64 + b] * 2 > sizes[c]) {
+                                word |= 1L << b;
+                            }
+                        }
+                        centers[c * words + w] = word;
+                    }
+                }
+            }
+            return assignment;
+        }
+    }
+
+    private static int nearest(long[] codes, int offset, long[] centers, int firstCenter, int k, int words) {
+        int best = 0;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int c = 0; c < k; c++) {
+            int distance = BinaryDescriptors.distance(codes, offset, centers, (firstCenter + c) * words, words);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    private int quantize(long[] codes, int offset) {
+        int node = 0;
+        while (mFirstChild[node] >= 0) {
+            node = mFirstChild[node] + nearest(codes, offset, mCenters, mFirstChild[node], mChildCount[node], mWords);
+        }
+        return mWordOf[node];
+    }
+
+    /**
+     * Assigns its word to every owned row from {@code firstRow} on, reading the rows in place.
+     */
+    private void quantizeRows(ByteBuffer descriptors, int[] descriptorStarts, int[] descriptorEnds, int firstRow) {
+        final long[] code = new long[mWords];
+        for (int face = 0; face < descriptorStarts.length; face++) {
+            for (int row = Math.max(descriptorStarts[face], firstRow); row < descriptorEnds[face]; row++) {
+                Arrays.fill(code, 0);
+                BinaryDescriptors.pack(descriptors, row * mBytes, mBytes, code, 0);
+                mWordOfRow[row] = quantize(code, 0);
+            }
+        }
+    }
+
+    private void buildInvertedFiles(int[] descriptorStarts, int[] descriptorEnds) {
+        // Term frequencies per face, faces are visited in order so postings come sorted by face.
+        int[] postingCounts = new int[mWordCount];
+        int[] facesWithWord = new int[mWordCount];
+        int[] lastFace = new int[mWordCount];
+        Arrays.fill(lastFace, -1);
+        for (int face = 0; face < mFaceCount; face++) {
+            for (int d = descriptorStarts[face]; d < descriptorEnds[face]; d++) {
+                int word = mWordOfRow[d];
+                if (lastFace[word] != face) {
+                    lastFace[word] = face;
+                    facesWithWord[word]++;
+                    postingCounts[word]++;
+                }
+            }
+        }
+        mIdf = new float[mWordCount];
+        for (int word = 0; word < mWordCount; word++) {
+            mIdf[word] = facesWithWord[word] == 0 ? 0 : (float) Math.log((double) mFaceCount / facesWithWord[word]);
+        }
+        mPostingStarts = new int[mWordCount + 1];
+        for (int word = 0; word < mWordCount; word++) {
+            mPostingStarts[word + 1] = mPostingStarts[word] + postingCounts[word];
+        }
+        mPostingFaces = new int[mPostingStarts[mWordCount]];
+        mPostingWeights = new float[mPostingStarts[mWordCount]];
+        int[] fill = Arrays.copyOf(mPostingStarts, mWordCount);
+        float[] histogram = new float[mWordCount];
+        int[] used = new int[mWordCount];
+        Arrays.fill(lastFace, -1);
+        for (int face = 0; face < mFaceCount; face++) {
+            int distinct = 0;
+            for (int d = descriptorStarts[face]; d < descriptorEnds[face]; d++) {
+                int word = mWordOfRow[d];
+                if (lastFace[word] != face) {
+                    lastFace[word] = face;
+                    used[distinct++] = word;
+                }
+                histogram[word] += mIdf[word];
+            }
+            float norm = 0;
+            for (int i = 0; i < distinct; i++) {
+                norm += histogram[used[i]];
+            }
+            for (int i = 0; i < distinct; i++) {
+                int word = used[i];
+                if (norm > 0) {
+                    mPostingFaces[fill[word]] = face;
+                    mPostingWeights[fill[word]++] = histogram[word] / norm;
+                }
+                histogram[word] = 0;
+            }
+        }
+        // Faces whose words all have a zero idf leave unused postings behind, mark them.
+        for (int word = 0; word < mWordCount; word++) {
+            for (int p = fill[word]; p < mPostingStarts[word + 1]; p++) {
+                mPostingFaces[p] = -1;
+            }
+        }
+    }
+
+    /**
+     * Scores every face sharing words with the query by the L1 similarity of the normalized
+     * TF-IDF histograms, {@code sum(min(q, d))}, which ranks like the L1 distance.
+     */
+    public float[] score(Mat query) {
+        if (query.empty()) {
+            return new float[mFaceCount];
+        }
+        final byte[] buffer = new byte[query.rows() * query.cols()];
+        query.get(0, 0, buffer);
+        return score(buffer, query.rows(), query.cols());
+    }
+
+    /**
+     * Same as {@link #score(Mat)} for {@code rows} query descriptors of {@code bytes} bytes
+     * packed in {@code query}.
+     */
+    float[] score(byte[] query, int rows, int bytes) {
+        final float[] scores = new float[mFaceCount];
+        if (rows == 0 || mWordCount == 0) {
+            return scores;
+        }
+        final long[] code = new long[mWords];
+        float[] histogram = new float[mWordCount];
+        int[] used = new int[Math.min(rows, mWordCount)];
+        int distinct = 0;
+        for (int row = 0; row < rows; row++) {
+            Arrays.fill(code, 0);
+            BinaryDescriptors.pack(query, row * bytes, Math.min(bytes, mBytes), code, 0);
+            int word = quantize(code, 0);
+            if (mIdf[word] == 0) {
+                continue;
+            }
+            if (histogram[word] == 0) {
+                used[distinct++] = word;
+            }
+            histogram[word] += mIdf[word];
+        }
+        float norm = 0;
+        for (int i = 0; i < distinct; i++) {
+            norm += histogram[used[i]];
+        }
+        if (norm == 0) {
+            return scores;
+        }
+        for (int i = 0; i < distinct; i++) {
+            int word = used[i];
+            float q = histogram[word] / norm;
+            for (int p = mPostingStarts[word]; p < mPostingStarts[word + 1]; p++) {
+                int face = mPostingFaces[p];
+                if (face >= 0) {
+                    scores[face] += Math.min(q, mPostingWeights[p]);
+                }
+            }
+        }
+        return scores;
+    }
+
+    @Override
+    public int[] rank(Mat query, int limit) {
+        return FaceRanking.top(score(query), limit, Float.MIN_VALUE);
+    }
+}
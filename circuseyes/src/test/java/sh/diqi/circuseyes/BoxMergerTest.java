@@ -0,0 +1,263 @@
+package sh.diqi.circuseyes;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the grid accelerated merge and suppression against the plain loops over all kept
+ * boxes they replace.
+ */
+public class BoxMergerTest {
+
+    private static final int FRAMES = 200;
+
+    @Test
+    public void merge_matchesBaselineLoop() throws Exception {
+        final Random random = new Random(1);
+        final BoxMerger merger = new BoxMerger();
+        for (int frame = 0; frame < FRAMES; frame++) {
+            final List<Box> boxes = randomBoxes(random);
+            merger.clear();
+            for (Box box : boxes) {
+                merger.add(box.left, box.top, box.right, box.bottom, box.score, box.classId);
+            }
+            final List<Box> expected = baselineMerge(boxes);
+            assertEquals(expected.size(), merger.merge());
+            for (int i = 0; i < expected.size(); i++) {
+                assertKept(expected.get(i), merger, i);
+            }
+        }
+    }
+
+    @Test
+    public void suppress_matchesBaselineLoop() throws Exception {
+        final Random random = new Random(2);
+        final BoxMerger merger = new BoxMerger();
+        for (int frame = 0; frame < FRAMES; frame++) {
+            final List<Box> boxes = randomBoxes(random);
+            final float threshold = 0.2f + random.nextFloat() * 0.6f;
+            merger.clear();
+            for (Box box : boxes) {
+                merger.add(box.left, box.top, box.right, box.bottom, box.score, box.classId);
+            }
+            final List<Box> expected = baselineSuppress(boxes, threshold);
+            assertEquals(expected.size(), merger.suppress(threshold));
+            for (int i = 0; i < expected.size(); i++) {
+                assertKept(expected.get(i), merger, i);
+            }
+        }
+    }
+
+    @Test
+    public void merge_growsKeptBoxToUnion() throws Exception {
+        final BoxMerger merger = new BoxMerger();
+        merger.add(0, 0, 10, 10, 0.9f, 1);
+        merger.add(5, 5, 14, 14, 0.8f, 1);
+        merger.add(5, 5, 14, 14, 0.7f, 2);
+        assertEquals(2, merger.merge());
+        final int kept = merger.getKept(0);
+        assertEquals(0, kept);
+        assertEquals(0f, merger.getLeft(kept), 0f);
+        assertEquals(0f, merger.getTop(kept), 0f);
+        assertEquals(14f, merger.getRight(kept), 0f);
+        assertEquals(14f, merger.getBottom(kept), 0f);
+        assertEquals(2, merger.getKept(1));
+    }
+
+    /**
+     * The baseline called {@code RectF.intersect()} on the copy {@code getLocation()} returns, so
+     * a partly overlapping box grows the whole kept box, not its intersection with the box.
+     */
+    @Test
+    public void merge_unionOfPartialOverlapKeepsWholeBox() throws Exception {
+        final BoxMerger merger = new BoxMerger();
+        merger.add(0, 0, 10, 10, 0.9f, 1);
+        merger.add(4, -4, 12, 8, 0.8f, 1);
+        assertEquals(1, merger.merge());
+        final int kept = merger.getKept(0);
+        assertEquals(0f, merger.getLeft(kept), 0f);
+        assertEquals(-4f, merger.getTop(kept), 0f);
+        assertEquals(12f, merger.getRight(kept), 0f);
+        assertEquals(10f, merger.getBottom(kept), 0f);
+    }
+
+    @Test
+    public void emptyFrame_keepsNothing() throws Exception {
+        final BoxMerger merger = new BoxMerger();
+        assertEquals(0, merger.merge());
+        assertEquals(0, merger.suppress(0.5f));
+    }
+
+    private static void assertKept(Box expected, BoxMerger merger, int i) {
+        final int kept = merger.getKept(i);
+        assertEquals(expected.index, kept);
+        assertEquals(expected.left, merger.getLeft(kept), 0f);
+        assertEquals(expected.top, merger.getTop(kept), 0f);
+        assertEquals(expected.right, merger.getRight(kept), 0f);
+        assertEquals(expected.bottom, merger.getBottom(kept), 0f);
+    }
+
+    /**
+     * Clusters of overlapping boxes of a few classes, with tied scores, so boxes get merged,
+     * grown and suppressed.
+     */
+    private static List<Box> randomBoxes(Random random) {
+        final int count = random.nextInt(80);
+        final List<Box> boxes = new ArrayList<>(count);
+        final int clusters = 1 + random.nextInt(6);
+        final float[] centers = new float[clusters * 2];
+        for (int i = 0; i < centers.length; i++) {
+            centers[i] = random.nextInt(600);
+        }
+        for (int i = 0; i < count; i++) {
+            final int cluster = random.nextInt(clusters);
+            final float x = centers[cluster * 2] + random.nextInt(60) - 30;
+            final float y = centers[cluster * 2 + 1] + random.nextInt(60) - 30;
+            final float width = 4 + random.nextInt(120);
+            final float height = 4 + random.nextInt(120);
+            final float score = random.nextInt(20) / 20f;
+            boxes.add(new Box(i, x - width / 2, y - height / 2, x + width / 2, y + height / 2, score,
+                    random.nextInt(3)));
+        }
+        return boxes;
+    }
+
+    private static List<Box> byDescendingScore(List<Box> boxes) {
+        final List<Box> sorted = new ArrayList<>();
+        for (Box box : boxes) {
+            sorted.add(box.copy());
+        }
+        // Stable, ties stay in the order they were added.
+        Collections.sort(sorted, new Comparator<Box>() {
+            @Override
+            public int compare(Box a, Box b) {
+                return Float.compare(b.score, a.score);
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * The merge loop {@link FMCGDetector#merge(List)} had before the grid.
+     */
+    private static List<Box> baselineMerge(List<Box> boxes) {
+        final List<Box> chosen = new ArrayList<>();
+        for (Box candidate : byDescendingScore(boxes)) {
+            boolean matched = false;
+            for (Box box : chosen) {
+                if (box.contains(candidate) && box.classId == candidate.classId) {
+                    matched = true;
+                    break;
+                }
+                if (box.intersects(candidate) && box.contains(candidate.centerX(), candidate.centerY()) &&
+                        box.classId == candidate.classId) {
+                    box.union(candidate);
+                    matched = true;
+                    break;
+                }
+            }
+            if (!matched) {
+                chosen.add(candidate);
+            }
+        }
+        return chosen;
+    }
+
+    private static List<Box> baselineSuppress(List<Box> boxes, float threshold) {
+        final List<Box> kept = new ArrayList<>();
+        for (Box candidate : byDescendingScore(boxes)) {
+            boolean suppressed = false;
+            for (Box box : kept) {
+                if (box.classId == candidate.classId && box.iou(candidate) > threshold) {
+                    suppressed = true;
+                    break;
+                }
+            }
+            if (!suppressed) {
+                kept.add(candidate);
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Box with the semantics of {@link android.graphics.RectF}, which is not available to local
+     * tests.
+     */
+    private static final class Box {
+        final int index;
+        float left;
+        float top;
+        float right;
+        float bottom;
+        final float score;
+        final int classId;
+
+        Box(int index, float left, float top, float right, float bottom, float score, int classId) {
+            this.index = index;
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+            this.score = score;
+            this.classId = classId;
+        }
+
+        Box copy() {
+            return new Box(index, left, top, right, bottom, score, classId);
+        }
+
+        float centerX() {
+            return (left + right) / 2;
+        }
+
+        float centerY() {
+            return (top + bottom) / 2;
+        }
+
+        boolean contains(Box box) {
+            return left < right && top < bottom &&
+                    left <= box.left && top <= box.top && right >= box.right && bottom >= box.bottom;
+        }
+
+        boolean contains(float x, float y) {
+            return left < right && top < bottom && x >= left && x < right && y >= top && y < bottom;
+        }
+
+        boolean intersects(Box box) {
+            return left < box.right && box.left < right && top < box.bottom && box.top < bottom;
+        }
+
+        void union(Box box) {
+            left = Math.min(left, box.left);
+            top = Math.min(top, box.top);
+            right = Math.max(right, box.right);
+            bottom = Math.max(bottom, box.bottom);
+        }
+
+        float iou(Box box) {
+            final float width = Math.min(right, box.right) - Math.max(left, box.left);
+            final float height = Math.min(bottom, box.bottom) - Math.max(top, box.top);
+            if (width <= 0 || height <= 0) {
+                return 0;
+            }
+            final float intersection = width * height;
+            final float union = (right - left) * (bottom - top) +
+                    (box.right - box.left) * (box.bottom - box.top) - intersection;
+            return union > 0 ? intersection / union : 0;
+        }
+
+        @Override
+        public String toString() {
+            return index + " " + Arrays.toString(new float[]{left, top, right, bottom});
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package sh.diqi.circuseyes;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DetectionBatchTest {
+
+    @Test
+    public void offer_keepsMostConfidentInOrder() throws Exception {
+        final DetectionBatch batch = new DetectionBatch(3);
+        assertTrue(batch.offer(0, 1, 0.5f, 0, 0, 10, 10));
+        assertTrue(batch.offer(1, 2, 0.9f, 1, 2, 3, 4));
+        assertTrue(batch.offer(2, 1, 0.2f, 0, 0, 1, 1));
+        assertTrue(batch.offer(3, 3, 0.7f, 5, 6, 7, 8));
+        assertFalse(batch.offer(4, 1, 0.1f, 0, 0, 1, 1));
+
+        assertEquals(3, batch.size());
+        assertEquals(1, batch.getIndex(0));
+        assertEquals(3, batch.getIndex(1));
+        assertEquals(0, batch.getIndex(2));
+        assertEquals(0.9f, batch.getScore(0), 0f);
+        assertEquals(0.7f, batch.getScore(1), 0f);
+        assertEquals(0.5f, batch.getScore(2), 0f);
+        assertEquals(3, batch.getClassId(1));
+        assertEquals(5f, batch.getLeft(1), 0f);
+        assertEquals(6f, batch.getTop(1), 0f);
+        assertEquals(7f, batch.getRight(1), 0f);
+        assertEquals(8f, batch.getBottom(1), 0f);
+    }
+
+    @Test
+    public void offer_rejectsTieWhenFull() throws Exception {
+        final DetectionBatch batch = new DetectionBatch(1);
+        assertTrue(batch.offer(0, 0, 0.5f, 0, 0, 1, 1));
+        assertFalse(batch.offer(1, 0, 0.5f, 0, 0, 1, 1));
+        assertEquals(0, batch.getIndex(0));
+    }
+
+    @Test
+    public void offer_rejectsEverythingWithoutCapacity() throws Exception {
+        final DetectionBatch batch = new DetectionBatch(0);
+        assertFalse(batch.offer(0, 0, 1f, 0, 0, 1, 1));
+        assertEquals(0, batch.size());
+    }
+
+    @Test
+    public void truncate_dropsLowScores() throws Exception {
+        final DetectionBatch batch = new DetectionBatch(4);
+        batch.offer(0, 0, 0.9f, 0, 0, 1, 1);
+        batch.offer(1, 0, 0.3f, 0, 0, 1, 1);
+        batch.offer(2, 0, 0.6f, 0, 0, 1, 1);
+        batch.truncate(0.5f);
+        assertEquals(2, batch.size());
+        assertEquals(0.6f, batch.getScore(1), 0f);
+        batch.truncate(1f);
+        assertEquals(0, batch.size());
+    }
+
+    @Test
+    public void clear_makesBatchReusable() throws Exception {
+        final DetectionBatch batch = new DetectionBatch(2);
+        batch.offer(0, 0, 0.9f, 0, 0, 1, 1);
+        batch.offer(1, 0, 0.8f, 0, 0, 1, 1);
+        batch.clear();
+        assertEquals(0, batch.size());
+        assertTrue(batch.offer(2, 0, 0.1f, 0, 0, 1, 1));
+        assertEquals(2, batch.getIndex(0));
+    }
+
+    @Test
+    public void getLabel_looksUpSharedTable() throws Exception {
+        final DetectionBatch batch = new DetectionBatch(2);
+        batch.offer(0, 1, 0.9f, 0, 0, 1, 1);
+        batch.offer(1, 5, 0.8f, 0, 0, 1, 1);
+        assertNull(batch.getLabel(0));
+        batch.setLabels(new String[]{"background", "cola"});
+        assertEquals("cola", batch.getLabel(0));
+        assertNull(batch.getLabel(1));
+        batch.setLabels(null);
+        assertNull(batch.getLabel(0));
+    }
+}
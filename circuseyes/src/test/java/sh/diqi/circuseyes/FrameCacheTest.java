@@ -0,0 +1,61 @@
+package sh.diqi.circuseyes;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameCacheTest {
+
+    @Test
+    public void get_hitsExactHash() throws Exception {
+        final FrameCache<String> cache = new FrameCache<>(4, 0);
+        assertNull(cache.get(0x1234L));
+        cache.put(0x1234L, "shelf");
+        assertEquals("shelf", cache.get(0x1234L));
+        assertNull(cache.get(0x1235L));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void get_hitsWithinTolerance() throws Exception {
+        final FrameCache<String> cache = new FrameCache<>(4, 2);
+        cache.put(0L, "shelf");
+        assertEquals("shelf", cache.get(0x3L));
+        assertNull(cache.get(0x7L));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void get_prefersMostRecentlyUsedMatch() throws Exception {
+        final FrameCache<String> cache = new FrameCache<>(4, 1);
+        cache.put(0x1L, "older");
+        cache.put(0x2L, "newer");
+        assertEquals("newer", cache.get(0x0L));
+        assertEquals("older", cache.get(0x1L));
+        assertEquals("older", cache.get(0x0L));
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsed() throws Exception {
+        final FrameCache<String> cache = new FrameCache<>(2, 0);
+        cache.put(1L, "one");
+        cache.put(2L, "two");
+        assertEquals("one", cache.get(1L));
+        cache.put(3L, "three");
+        assertNull(cache.get(2L));
+        assertEquals("one", cache.get(1L));
+        assertEquals("three", cache.get(3L));
+    }
+
+    @Test
+    public void invalidate_forgetsEntries() throws Exception {
+        final FrameCache<String> cache = new FrameCache<>(2, 0);
+        cache.put(1L, "one");
+        cache.invalidate();
+        assertNull(cache.get(1L));
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+}
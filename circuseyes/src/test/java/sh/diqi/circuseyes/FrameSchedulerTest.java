@@ -0,0 +1,93 @@
+package sh.diqi.circuseyes;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameSchedulerTest {
+
+    @Test
+    public void mailbox_replacesWaitingFrame() throws Exception {
+        final FrameScheduler<String> scheduler = new FrameScheduler<>(0);
+        assertEquals(1, scheduler.capacity());
+        assertNull(scheduler.reclaim());
+        assertTrue(scheduler.offer("first"));
+        assertEquals("first", scheduler.reclaim());
+        assertTrue(scheduler.offer("second"));
+        assertEquals("second", scheduler.take());
+        assertNull(scheduler.reclaim());
+
+        assertEquals(2, scheduler.getSubmittedFrames());
+        assertEquals(1, scheduler.getCoalescedFrames());
+        assertEquals(0, scheduler.getDroppedFrames());
+        assertEquals(1, scheduler.getProcessedFrames());
+    }
+
+    @Test
+    public void mailbox_dropsFrameOfferedWithoutReclaiming() throws Exception {
+        final FrameScheduler<String> scheduler = new FrameScheduler<>(0);
+        assertTrue(scheduler.offer("first"));
+        assertFalse(scheduler.offer("second"));
+        assertEquals("first", scheduler.take());
+        assertEquals(1, scheduler.getDroppedFrames());
+    }
+
+    @Test
+    public void queue_keepsOrderAndDropsWhenFull() throws Exception {
+        final FrameScheduler<Integer> scheduler = new FrameScheduler<>(2);
+        assertEquals(2, scheduler.capacity());
+        assertTrue(scheduler.offer(1));
+        assertNull(scheduler.reclaim());
+        assertTrue(scheduler.offer(2));
+        assertFalse(scheduler.offer(3));
+        assertEquals(1, (int) scheduler.take());
+        assertTrue(scheduler.offer(4));
+        assertEquals(2, (int) scheduler.take());
+        assertEquals(4, (int) scheduler.take());
+
+        assertEquals(4, scheduler.getSubmittedFrames());
+        assertEquals(0, scheduler.getCoalescedFrames());
+        assertEquals(1, scheduler.getDroppedFrames());
+        assertEquals(3, scheduler.getProcessedFrames());
+    }
+
+    @Test
+    public void drop_countsFrameWithoutBuffer() throws Exception {
+        final FrameScheduler<String> scheduler = new FrameScheduler<>(0);
+        scheduler.drop();
+        assertEquals(1, scheduler.getSubmittedFrames());
+        assertEquals(1, scheduler.getDroppedFrames());
+        assertNull(scheduler.poll());
+    }
+
+    @Test
+    public void poll_removesWaitingFramesUncounted() throws Exception {
+        final FrameScheduler<Integer> scheduler = new FrameScheduler<>(3);
+        scheduler.offer(1);
+        scheduler.offer(2);
+        assertEquals(1, (int) scheduler.poll());
+        assertEquals(2, (int) scheduler.poll());
+        assertNull(scheduler.poll());
+        assertEquals(0, scheduler.getProcessedFrames());
+        assertEquals(0, scheduler.getDroppedFrames());
+    }
+
+    @Test(timeout = 5000)
+    public void take_waitsForOfferedFrame() throws Exception {
+        final FrameScheduler<String> scheduler = new FrameScheduler<>(0);
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                scheduler.offer("frame");
+            }
+        });
+        producer.start();
+        assertEquals("frame", scheduler.take());
+        producer.join();
+    }
+}
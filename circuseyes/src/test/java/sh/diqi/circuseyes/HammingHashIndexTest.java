@@ -0,0 +1,85 @@
+package sh.diqi.circuseyes;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HammingHashIndexTest {
+
+    private static final int BYTES = 32;
+    private static final int FACES = 40;
+    private static final int PER_FACE = 60;
+    private static final int ROWS = FACES * PER_FACE;
+
+    @Test
+    public void vote_findsFaceOfNoisyQuery() throws Exception {
+        final Random random = new Random(3);
+        final ByteBuffer descriptors = randomDescriptors(random, ROWS);
+        final int[] starts = new int[FACES];
+        final int[] ends = new int[FACES];
+        for (int face = 0; face < FACES; face++) {
+            starts[face] = face * PER_FACE;
+            ends[face] = starts[face] + PER_FACE;
+        }
+        final HammingHashIndex index = HammingHashIndex.build(descriptors, BYTES, ROWS, starts, ends, 6, 16);
+        assertEquals(FACES, index.getFaceCount());
+        assertEquals(ROWS, index.getDescriptorCount());
+
+        int found = 0;
+        for (int face = 0; face < FACES; face++) {
+            final byte[] query = noisyQuery(random, descriptors, starts[face], PER_FACE, 3);
+            final int[] ranked = HammingHashIndex.rank(index.vote(query, PER_FACE, BYTES), 5, 2);
+            if (ranked.length > 0 && ranked[0] == face) {
+                found++;
+            }
+        }
+        assertTrue(found + " of " + FACES + " faces found", found >= FACES * 95 / 100);
+    }
+
+    @Test
+    public void vote_skipsRowsNoFaceOwns() throws Exception {
+        final Random random = new Random(4);
+        final ByteBuffer descriptors = randomDescriptors(random, 2 * PER_FACE);
+        final int[] starts = {PER_FACE};
+        final int[] ends = {2 * PER_FACE};
+        final HammingHashIndex index = HammingHashIndex.build(descriptors, BYTES, 2 * PER_FACE, starts, ends, 6, 16);
+        assertEquals(PER_FACE, index.getDescriptorCount());
+        final byte[] orphan = noisyQuery(random, descriptors, 0, PER_FACE, 0);
+        assertEquals(0, HammingHashIndex.rank(index.vote(orphan, PER_FACE, BYTES), 5, 2).length);
+        final byte[] owned = noisyQuery(random, descriptors, PER_FACE, PER_FACE, 0);
+        assertArrayEquals(new int[]{0}, HammingHashIndex.rank(index.vote(owned, PER_FACE, BYTES), 5, 2));
+    }
+
+    @Test
+    public void rank_ordersByVotesThenId() throws Exception {
+        assertArrayEquals(new int[]{2, 0, 3}, HammingHashIndex.rank(new int[]{5, 1, 9, 5}, 3, 2));
+        assertArrayEquals(new int[]{2}, HammingHashIndex.rank(new int[]{5, 1, 9, 5}, 1, 2));
+        assertEquals(0, HammingHashIndex.rank(new int[]{1, 1}, 3, 2).length);
+    }
+
+    static ByteBuffer randomDescriptors(Random random, int rows) {
+        final ByteBuffer descriptors = ByteBuffer.allocate(rows * BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        random.nextBytes(descriptors.array());
+        return descriptors;
+    }
+
+    /**
+     * Copies {@code count} rows from {@code first} on, flipping {@code flips} random bits of
+     * each.
+     */
+    static byte[] noisyQuery(Random random, ByteBuffer descriptors, int first, int count, int flips) {
+        final byte[] query = new byte[count * BYTES];
+        System.arraycopy(descriptors.array(), first * BYTES, query, 0, query.length);
+        for (int row = 0; row < count; row++) {
+            for (int i = 0; i < flips; i++) {
+                final int bit = random.nextInt(BYTES * 8);
+                query[row * BYTES + bit / 8] ^= 1 << (bit % 8);
+            }
+        }
+        return query;
+    }
+}
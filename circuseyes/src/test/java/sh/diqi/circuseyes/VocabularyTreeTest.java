@@ -0,0 +1,106 @@
+package sh.diqi.circuseyes;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class VocabularyTreeTest {
+
+    private static final int BYTES = 32;
+    private static final int FACES = 40;
+    private static final int PER_FACE = 60;
+    private static final int ROWS = FACES * PER_FACE;
+    private static final long GENERATION = 7;
+
+    @Test
+    public void score_ranksFaceOfNoisyQueryFirst() throws Exception {
+        final Random random = new Random(5);
+        final ByteBuffer descriptors = HammingHashIndexTest.randomDescriptors(random, ROWS);
+        final int[] starts = starts(FACES);
+        final int[] ends = ends(FACES);
+        final VocabularyTree tree = VocabularyTree.build(descriptors, BYTES, ROWS, starts, ends, GENERATION, 8, 3);
+        assertEquals(FACES, tree.getFaceCount());
+        assertTrue(tree.getWordCount() > 1);
+
+        int found = 0;
+        for (int face = 0; face < FACES; face++) {
+            final byte[] query = HammingHashIndexTest.noisyQuery(random, descriptors, starts[face], PER_FACE, 3);
+            if (top(tree, query) == face) {
+                found++;
+            }
+        }
+        assertTrue(found + " of " + FACES + " faces found", found >= FACES * 95 / 100);
+    }
+
+    @Test
+    public void update_indexesAddedFacesWithSameVocabulary() throws Exception {
+        final Random random = new Random(6);
+        final int added = 10;
+        final int rows = ROWS + added * PER_FACE;
+        final ByteBuffer descriptors = HammingHashIndexTest.randomDescriptors(random, rows);
+        final VocabularyTree tree = VocabularyTree.build(descriptors, BYTES, ROWS, starts(FACES), ends(FACES),
+                GENERATION, 8, 3);
+        final int[] starts = starts(FACES + added);
+        final int[] ends = ends(FACES + added);
+        final VocabularyTree updated = tree.update(descriptors, BYTES, rows, starts, ends, GENERATION);
+        assertEquals(FACES + added, updated.getFaceCount());
+        assertEquals(tree.getWordCount(), updated.getWordCount());
+
+        int found = 0;
+        for (int face = 0; face < FACES + added; face++) {
+            final byte[] query = HammingHashIndexTest.noisyQuery(random, descriptors, starts[face], PER_FACE, 0);
+            if (top(updated, query) == face) {
+                found++;
+            }
+        }
+        assertTrue(found + " of " + (FACES + added) + " faces found", found >= (FACES + added) * 95 / 100);
+    }
+
+    @Test
+    public void update_matchesRebuildOfOtherGeneration() throws Exception {
+        final Random random = new Random(7);
+        final ByteBuffer descriptors = HammingHashIndexTest.randomDescriptors(random, ROWS);
+        final int[] starts = starts(FACES);
+        final int[] ends = ends(FACES);
+        final VocabularyTree tree = VocabularyTree.build(descriptors, BYTES, ROWS, starts, ends, GENERATION, 8, 3);
+        final VocabularyTree requantized = tree.update(descriptors, BYTES, ROWS, starts, ends, GENERATION + 1);
+        final byte[] query = HammingHashIndexTest.noisyQuery(random, descriptors, starts[3], PER_FACE, 3);
+        assertArrayEquals(tree.score(query, PER_FACE, BYTES), requantized.score(query, PER_FACE, BYTES), 0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void update_rejectsOtherDescriptorSize() throws Exception {
+        final Random random = new Random(8);
+        final ByteBuffer descriptors = HammingHashIndexTest.randomDescriptors(random, ROWS);
+        final VocabularyTree tree = VocabularyTree.build(descriptors, BYTES, ROWS, starts(FACES), ends(FACES),
+                GENERATION, 8, 3);
+        tree.update(ByteBuffer.allocate(ROWS * 64).order(ByteOrder.LITTLE_ENDIAN), 64, ROWS,
+                starts(FACES), ends(FACES), GENERATION);
+    }
+
+    private static int top(VocabularyTree tree, byte[] query) {
+        final int[] ranked = FaceRanking.top(tree.score(query, PER_FACE, BYTES), 5, Float.MIN_VALUE);
+        return ranked.length > 0 ? ranked[0] : -1;
+    }
+
+    private static int[] starts(int faces) {
+        final int[] starts = new int[faces];
+        for (int face = 0; face < faces; face++) {
+            starts[face] = face * PER_FACE;
+        }
+        return starts;
+    }
+
+    private static int[] ends(int faces) {
+        final int[] ends = Arrays.copyOf(starts(faces), faces);
+        for (int face = 0; face < faces; face++) {
+            ends[face] += PER_FACE;
+        }
+        return ends;
+    }
+}
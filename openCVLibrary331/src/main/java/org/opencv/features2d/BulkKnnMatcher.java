@@ -0,0 +1,125 @@
+package org.opencv.features2d;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Brute force k nearest neighbour matcher returning its results in reusable primitive arrays
+ * instead of a {@code List<MatOfDMatch>} of boxed {@link org.opencv.core.DMatch}.
+ * <p>
+ * Matching is done by {@link Core#batchDistance}, the same routine BFMatcher::knnMatch uses, and
+ * the output mats and arrays are kept between calls, so matching queries of similar sizes does
+ * not allocate. Results are laid out row major, k entries per query descriptor, the query index
+ * of an entry being its row. Missing neighbours have a train index of -1.
+ * <p>
+ * Instances are not thread safe, use one per thread.
+ */
+public class BulkKnnMatcher {
+
+    private final int normType;
+    private final int k;
+    private final Mat distancesMat = new Mat();
+    private final Mat indicesMat = new Mat();
+    private int[] trainIdx = new int[0];
+    private int[] intDistances = new int[0];
+    private float[] distances = new float[0];
+    private int queryCount;
+
+    public BulkKnnMatcher(int normType, int k) {
+        this.normType = normType;
+        this.k = k;
+    }
+
+    /**
+     * Finds the k nearest train descriptors of every query descriptor.
+     */
+    public void knnMatch(Mat queryDescriptors, Mat trainDescriptors) {
+        if (queryDescriptors.empty() || trainDescriptors.empty()) {
+            queryCount = 0;
+            return;
+        }
+        Core.batchDistance(queryDescriptors, trainDescriptors, distancesMat, -1, indicesMat,
+                normType, Math.min(k, trainDescriptors.rows()));
+        queryCount = queryDescriptors.rows();
+        final int size = queryCount * k;
+        if (trainIdx.length < size) {
+            trainIdx = new int[size];
+            distances = new float[size];
+        }
+        final int found = indicesMat.cols();
+        if (found == k) {
+            indicesMat.get(0, 0, trainIdx);
+            readDistances(size);
+        } else {
+            // Fewer train descriptors than k, spread the found neighbours over k slots.
+            int[] idx = new int[queryCount * found];
+            indicesMat.get(0, 0, idx);
+            float[] dist = new float[queryCount * found];
+            readDistances(queryCount * found);
+            System.arraycopy(distances, 0, dist, 0, dist.length);
+            for (int q = 0; q < queryCount; q++) {
+                for (int n = 0; n < k; n++) {
+                    trainIdx[q * k + n] = n < found ? idx[q * found + n] : -1;
+                    distances[q * k + n] = n < found ? dist[q * found + n] : Float.MAX_VALUE;
+                }
+            }
+        }
+    }
+
+    private void readDistances(int size) {
+        if (distancesMat.depth() == CvType.CV_32S) {
+            if (intDistances.length < size) {
+                intDistances = new int[size];
+            }
+            distancesMat.get(0, 0, intDistances);
+            for (int i = 0; i < size; i++) {
+                distances[i] = intDistances[i];
+            }
+        } else {
+            distancesMat.get(0, 0, distances);
+        }
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    /**
+     * Number of query descriptors of the last {@link #knnMatch} call.
+     */
+    public int getQueryCount() {
+        return queryCount;
+    }
+
+    /**
+     * Train indexes of the last call, {@code getTrainIdx()[query * k + n]} being the n-th
+     * nearest neighbour of descriptor {@code query}. Only the first {@code getQueryCount() * k}
+     * entries are valid, the array is reused by the next call.
+     */
+    public int[] getTrainIdx() {
+        return trainIdx;
+    }
+
+    /**
+     * Distances of the last call, laid out as {@link #getTrainIdx()}.
+     */
+    public float[] getDistances() {
+        return distances;
+    }
+
+    /**
+     * Counts the query descriptors of the last call whose nearest neighbour is closer than
+     * {@code ratio} times the second nearest (Lowe's ratio test), requires k >= 2.
+     */
+    public int countRatioMatches(float ratio) {
+        int good = 0;
+        for (int q = 0; q < queryCount; q++) {
+            int first = q * k;
+            if (trainIdx[first + 1] >= 0 && distances[first] < ratio * distances[first + 1]) {
+                good++;
+            }
+        }
+        return good;
+    }
+}